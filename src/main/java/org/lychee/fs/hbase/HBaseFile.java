@@ -16,7 +16,9 @@
 package org.lychee.fs.hbase;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -133,6 +135,16 @@ public class HBaseFile {
     public long getCreateTime() {
         return createTime;
     }
+
+    /**
+     * the md5 of the content in hex, it's null if the file is not integrity
+     * or it's written by an old version.
+     *
+     * @return
+     */
+    public String getMd5() {
+        return md5 == null ? null : Hex.encodeHexString(md5);
+    }
     
     @Override
     public String toString() {
@@ -173,6 +185,117 @@ public class HBaseFile {
         return this.shards;
     }
 
+    /**
+     * every shard except the last one has this many bytes.
+     */
+    protected int getShardSize() {
+        return this.shardSize;
+    }
+
+    protected void setShardSize(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * the content of a small file stored with the meta, or null.
+     */
+    protected byte[] getInline() {
+        return this.inline;
+    }
+
+    protected void setInline(byte[] inline) {
+        this.inline = inline;
+    }
+
+    protected byte[] getMd5Bytes() {
+        return this.md5;
+    }
+
+    protected void setMd5(byte[] md5) {
+        this.md5 = md5;
+    }
+
+    /**
+     * the identifier of the row holding the shards, or null if it's this
+     * file's own row.
+     */
+    protected String getLink() {
+        return this.link;
+    }
+
+    protected void setLink(String link) {
+        this.link = link;
+    }
+
+    /**
+     * the chunk list of a chunked file, or null.
+     */
+    protected byte[] getChunks() {
+        return this.chunks;
+    }
+
+    protected void setChunks(byte[] chunks) {
+        this.chunks = chunks;
+        this.chunkOffsets = null;
+    }
+
+    /**
+     * the shard at the position, start from 1.
+     */
+    protected int shardAt(long pos) {
+        if (chunks == null) {
+            return (int) (pos / shardSize) + 1;
+        }
+        long[] offsets = chunkOffsets();
+        int i = Arrays.binarySearch(offsets, pos);
+        // 分片的起始位置，或者插入点的前一个分片
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    /**
+     * the position of the first byte of the shard.
+     */
+    protected long shardOffset(int shard) {
+        if (chunks == null) {
+            return (long) (shard - 1) * shardSize;
+        }
+        return chunkOffsets()[shard - 1];
+    }
+
+    private long[] chunkOffsets() {
+        if (chunkOffsets == null) {
+            int n = chunks.length / CHUNK_ENTRY_SIZE;
+            long[] offsets = new long[n + 1];
+            for (int i = 0; i < n; i++) {
+                offsets[i + 1] = offsets[i] + HBaseFileHelper.chunkLength(chunks, i + 1);
+            }
+            chunkOffsets = offsets;
+        }
+        return chunkOffsets;
+    }
+
+    /**
+     * the name of the codec compressing the shards, or null.
+     */
+    protected String getCodec() {
+        return this.codec;
+    }
+
+    protected void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * how many shards are in one row, 0 if they are all in the file row.
+     */
+    protected int getBlockShards() {
+        return this.blockShards;
+    }
+
+    protected void setBlockShards(int blockShards) {
+        this.blockShards = blockShards;
+    }
+
     protected void setDesc(String desc) {
         this.desc = desc;
     }
@@ -194,4 +317,20 @@ public class HBaseFile {
 
     private int shards = 0;
 
+    private int shardSize = DEFAULT_SHARD_SIZE;
+
+    private byte[] inline;
+
+    private byte[] md5;
+
+    private String link;
+
+    private byte[] chunks;
+
+    private String codec;
+
+    private int blockShards;
+
+    private long[] chunkOffsets;
+
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * A batch of uploads or downloads on the shared transfer pool. <br/>
+ *
+ * The results come out in the order they complete, one for every source,
+ * with the value or the error of its transfer. Only a window of the sources
+ * are submitted at a time, the next ones are submitted as the results are
+ * taken, so a batch of millions of files does not queue millions of tasks.
+ * <br/>
+ *
+ * cancel() or close() stops the batch: the sources not started are dropped,
+ * the ones running are finished.
+ *
+ * @author chunhui
+ * @see HBaseFileUtils#uploadAll(java.util.Collection)
+ * @see HBaseFileUtils#download(java.util.Collection, java.io.File)
+ */
+public class HBaseFileBatch<S, T> implements Closeable {
+
+    private final Iterator<? extends S> sources;
+    private final Transfer<S, T> transfer;
+    private final CompletionService<Result<S, T>> completion;
+    private final int window;
+
+    /**
+     * the submitted transfers whose results are not taken.
+     */
+    private final Map<Future<Result<S, T>>, Task> pending = new ConcurrentHashMap<Future<Result<S, T>>, Task>();
+
+    private volatile boolean cancelled;
+
+    HBaseFileBatch(Iterable<? extends S> sources, Transfer<S, T> transfer, int window) {
+        this.sources = sources.iterator();
+        this.transfer = transfer;
+        this.completion = new ExecutorCompletionService<Result<S, T>>(HBaseFileExecutors.transfer());
+        this.window = Math.max(1, window);
+        submit();
+    }
+
+    /**
+     * take the next completed result, it blocks until one completes. Take
+     * the results in one thread.
+     *
+     * @return null if all the results have been taken.
+     * @throws InterruptedIOException
+     */
+    public Result<S, T> next() throws InterruptedIOException {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        Future<Result<S, T>> future;
+        try {
+            future = completion.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the transfers.");
+        }
+        S source = pending.remove(future).source;
+        submit();
+        try {
+            return future.get();
+        } catch (CancellationException ex) {
+            return new Result<S, T>(source, null, new InterruptedIOException("Cancelled."));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the transfers.");
+        } catch (ExecutionException ex) {
+            return new Result<S, T>(source, null, new IOException(ex.getCause()));
+        }
+    }
+
+    /**
+     * drop the sources not started, the running ones are finished and their
+     * results can still be taken.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Map.Entry<Future<Result<S, T>>, Task> entry : pending.entrySet()) {
+            //已经开始的传输不取消，结果照常取回
+            if (entry.getValue().started.compareAndSet(false, true)) {
+                entry.getKey().cancel(false);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void close() {
+        cancel();
+    }
+
+    private synchronized void submit() {
+        while (!cancelled && pending.size() < window && sources.hasNext()) {
+            Task task = new Task(sources.next());
+            pending.put(completion.submit(task), task);
+        }
+    }
+
+    /**
+     * the transfer of one source on the pool. It's started once, by the
+     * pool or by cancel() which drops it.
+     */
+    private class Task implements Callable<Result<S, T>> {
+
+        private final S source;
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Task(S source) {
+            this.source = source;
+        }
+
+        @Override
+        public Result<S, T> call() {
+            if (!started.compareAndSet(false, true)) {
+                return new Result<S, T>(source, null, new InterruptedIOException("Cancelled."));
+            }
+            try {
+                return new Result<S, T>(source, transfer.transfer(source), null);
+            } catch (IOException ex) {
+                return new Result<S, T>(source, null, ex);
+            } catch (RuntimeException ex) {
+                return new Result<S, T>(source, null, new IOException(ex));
+            }
+        }
+    }
+
+    /**
+     * the transfer of one source.
+     */
+    interface Transfer<S, T> {
+
+        T transfer(S source) throws IOException;
+    }
+
+    /**
+     * the result of one source, the value or the error.
+     */
+    public static class Result<S, T> {
+
+        private final S source;
+        private final T value;
+        private final IOException error;
+
+        Result(S source, T value, IOException error) {
+            this.source = source;
+            this.value = value;
+            this.error = error;
+        }
+
+        public S getSource() {
+            return source;
+        }
+
+        /**
+         * eg. the identifier of an uploaded file, null if it failed.
+         */
+        public T getValue() {
+            return value;
+        }
+
+        public IOException getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return source + (error == null ? " -> " + value : " failed: " + error);
+        }
+    }
+
+}
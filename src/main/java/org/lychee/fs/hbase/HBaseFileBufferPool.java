@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.lychee.fs.hbase.HBaseFileConst.*;
+
+/**
+ *
+ * The shard buffers shared by all the streams. <br/>
+ *
+ * A stream takes its shard buffers here and gives them back at close, so
+ * the next stream does not allocate them again. At most
+ * "hbase.fs.buffer.pool.bytes" of idle buffers are kept, the others are left
+ * to the gc. The buffers in use are bounded by the streams themselves, eg.
+ * "hbase.fs.write.buffer.bytes" in async mode, so a take never blocks here.
+ * <br/>
+ *
+ * The buffers are on heap, a Put can only carry a byte[]. A shard buffer
+ * has the room for the shard header before the bytes.
+ *
+ * @author chunhui
+ * @see HBaseFileOutputStream
+ */
+class HBaseFileBufferPool {
+
+    /**
+     * where the bytes start in a shard buffer.
+     */
+    static final int SHARD_ROOM = HBaseFileCodec.HEADER_SIZE;
+
+    /**
+     * the idle buffers by size, the last given is taken first.
+     */
+    private static final ConcurrentMap<Integer, Deque<byte[]>> idle
+            = new ConcurrentHashMap<Integer, Deque<byte[]>>();
+
+    private static final AtomicLong idleBytes = new AtomicLong();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong waits = new AtomicLong();
+    private static final AtomicLong drops = new AtomicLong();
+
+    private static volatile long maxBytes = -1;
+
+    private HBaseFileBufferPool() {
+    }
+
+    /**
+     * take an idle buffer of the size, or a new one.
+     *
+     * @param size
+     * @return
+     */
+    static byte[] take(int size) {
+        Deque<byte[]> buffers = idle.get(size);
+        byte[] buffer = buffers == null ? null : buffers.pollFirst();
+        if (buffer != null) {
+            idleBytes.addAndGet(-size);
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new byte[size];
+    }
+
+    /**
+     * take a shard buffer: the room for the shard header, then the bytes of
+     * the shard. The header is put in the room, so the shard is not copied
+     * again to add it, see HBaseFileHelper#addShardBuffer.
+     *
+     * @param shardSize
+     * @return
+     */
+    static byte[] takeShard(int shardSize) {
+        return take(SHARD_ROOM + shardSize);
+    }
+
+    /**
+     * give back a buffer nobody uses any more.
+     *
+     * @param buffer
+     */
+    static void give(byte[] buffer) {
+        if (idleBytes.addAndGet(buffer.length) > maxBytes()) {
+            idleBytes.addAndGet(-buffer.length);
+            drops.incrementAndGet();
+            return;
+        }
+        Deque<byte[]> buffers = idle.get(buffer.length);
+        if (buffers == null) {
+            Deque<byte[]> newBuffers = new ConcurrentLinkedDeque<byte[]>();
+            buffers = idle.putIfAbsent(buffer.length, newBuffers);
+            if (buffers == null) {
+                buffers = newBuffers;
+            }
+        }
+        buffers.offerFirst(buffer);
+    }
+
+    /**
+     * a stream waited for one of its buffers to be given back.
+     */
+    static void waited() {
+        waits.incrementAndGet();
+    }
+
+    /**
+     * hits, misses, waits, drops and the idle bytes.
+     *
+     * @return
+     */
+    static Map<String, Long> metrics() {
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        metrics.put("waits", waits.get());
+        metrics.put("drops", drops.get());
+        metrics.put("idleBytes", idleBytes.get());
+        return metrics;
+    }
+
+    /**
+     * drop the idle buffers, the max bytes are read from the conf again.
+     */
+    static void clear() {
+        for (Deque<byte[]> buffers : idle.values()) {
+            byte[] buffer;
+            while ((buffer = buffers.pollFirst()) != null) {
+                idleBytes.addAndGet(-buffer.length);
+            }
+        }
+        maxBytes = -1;
+    }
+
+    private static long maxBytes() {
+        long max = maxBytes;
+        if (max < 0) {
+            max = Math.max(0, HBaseFileHelper.conf().getLong(BUFFER_POOL_BYTES_KEY, DEFAULT_BUFFER_POOL_BYTES));
+            maxBytes = max;
+        }
+        return max;
+    }
+
+}
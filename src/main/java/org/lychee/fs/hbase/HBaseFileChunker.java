@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.util.Random;
+
+/**
+ *
+ * Cut the content into chunks by a rolling hash (gear hash). <br/>
+ *
+ * A chunk ends where the hash of its last 64 bytes matches the mask, so the
+ * boundaries move with the content: an insert or a delete only changes the
+ * chunks around it, the rest are the same as before and can be shared. The
+ * chunks are between the min and max size, about min + avg on average.
+ *
+ * @author chunhui
+ * @see HBaseFileOutputStream
+ */
+class HBaseFileChunker {
+
+    /**
+     * the same random table everywhere, or the boundaries would not match.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6c79636865654c4cL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    private long hash;
+    private int length;
+
+    /**
+     *
+     * @param minSize no boundary before it.
+     * @param avgSize the expected bytes after the min size, rounded down to
+     * a power of 2.
+     * @param maxSize a chunk is cut at it anyway.
+     */
+    HBaseFileChunker(int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || avgSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Bad chunk sizes: " + minSize
+                    + ", " + avgSize + ", " + maxSize);
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(Integer.highestOneBit(avgSize));
+        // 用高位判断边界，高位受最近64个字节的影响
+        this.mask = bits == 0 ? 0L : -1L << (64 - bits);
+    }
+
+    /**
+     * feed one byte.
+     *
+     * @param b
+     * @return true if the chunk ends with the byte, the chunker is reset for
+     * the next chunk.
+     */
+    boolean next(byte b) {
+        hash = (hash << 1) + GEAR[b & 0xff];
+        length++;
+        if (length >= maxSize || (length >= minSize && (hash & mask) == 0)) {
+            hash = 0;
+            length = 0;
+            return true;
+        }
+        return false;
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.PureJavaCrc32C;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ *
+ * Compress and decompress the shards with the hadoop codecs, and check
+ * them. <br/>
+ *
+ * A shard with a header is [version, codec, raw length (4 bytes), crc32c of
+ * the raw bytes (4 bytes), bytes]. The codec in the header is the one really
+ * used, a shard which does not shrink is kept raw, so a shard can always be
+ * read without the meta.
+ *
+ * @author chunhui
+ */
+class HBaseFileCodec {
+
+    static final byte VERSION = 2;
+
+    static final int HEADER_SIZE = 10;
+
+    /**
+     * the codec id in the header is the index, never reorder them.
+     */
+    private static final String[] NAMES = {
+        "none", "deflate", "gzip", "bzip2", "snappy", "lz4"};
+
+    private static final String[] CLASSES = {
+        null,
+        "org.apache.hadoop.io.compress.DefaultCodec",
+        "org.apache.hadoop.io.compress.GzipCodec",
+        "org.apache.hadoop.io.compress.BZip2Codec",
+        "org.apache.hadoop.io.compress.SnappyCodec",
+        "org.apache.hadoop.io.compress.Lz4Codec"};
+
+    private static final CompressionCodec[] codecs = new CompressionCodec[NAMES.length];
+
+    private HBaseFileCodec() {
+    }
+
+    /**
+     * the id of the codec.
+     *
+     * @param name one of none, deflate, gzip, bzip2, snappy and lz4.
+     * @return
+     */
+    static byte id(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec: " + name
+                + ", it should be one of " + Arrays.toString(NAMES));
+    }
+
+    /**
+     * compress the bytes and put the header with the checksum before them.
+     *
+     * @param codec the codec id.
+     * @return the shard with the header.
+     * @throws IOException
+     */
+    static byte[] encode(byte codec, byte[] bytes, int offset, int length) throws IOException {
+        byte[] shard = compress(codec, bytes, offset, length);
+        if (shard == null) {
+            codec = 0;
+            shard = new byte[HEADER_SIZE + length];
+            System.arraycopy(bytes, offset, shard, HEADER_SIZE, length);
+        }
+        putHeader(shard, codec, bytes, offset, length);
+        return shard;
+    }
+
+    /**
+     * encode the bytes of a shard buffer, they are in [HEADER_SIZE,
+     * HEADER_SIZE + length) and the header is put in the room before them. A
+     * shard kept raw is not copied.
+     *
+     * @param codec the codec id.
+     * @param buffer see HBaseFileBufferPool#takeShard(int).
+     * @return the shard with the header, in the buffer or in a new array.
+     * @throws IOException
+     */
+    static ByteBuffer encode(byte codec, byte[] buffer, int length) throws IOException {
+        byte[] shard = compress(codec, buffer, HEADER_SIZE, length);
+        if (shard != null) {
+            putHeader(shard, codec, buffer, HEADER_SIZE, length);
+            return ByteBuffer.wrap(shard);
+        }
+        putHeader(buffer, (byte) 0, buffer, HEADER_SIZE, length);
+        return ByteBuffer.wrap(buffer, 0, HEADER_SIZE + length);
+    }
+
+    /**
+     * @return the shard with the room for the header, null if it does not
+     * shrink.
+     */
+    private static byte[] compress(byte codec, byte[] bytes, int offset, int length) throws IOException {
+        if (codec == 0) {
+            return null;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_SIZE + length / 2);
+        bos.write(new byte[HEADER_SIZE]);
+        Compressor compressor = CodecPool.getCompressor(codec(codec));
+        try (OutputStream out = codec(codec).createOutputStream(bos, compressor)) {
+            out.write(bytes, offset, length);
+        } finally {
+            CodecPool.returnCompressor(compressor);
+        }
+        //压缩后没有变小，保存原始数据
+        return bos.size() < HEADER_SIZE + length ? bos.toByteArray() : null;
+    }
+
+    private static void putHeader(byte[] shard, byte codec, byte[] bytes, int offset, int length) {
+        shard[0] = VERSION;
+        shard[1] = codec;
+        Bytes.putInt(shard, 2, length);
+        Bytes.putInt(shard, 6, crc32c(bytes, offset, length));
+    }
+
+    /**
+     * check the header, decompress the shard and verify the checksum. A raw
+     * shard is not copied, the bytes after the header are wrapped.
+     *
+     * @param shard the shard with the header.
+     * @return the raw bytes.
+     * @throws ChecksumException if the bytes are broken.
+     * @throws IOException
+     */
+    static ByteBuffer decode(byte[] shard) throws IOException {
+        int version = shard.length == 0 ? -1 : shard[0];
+        if (shard.length < HEADER_SIZE || version != VERSION) {
+            throw new ChecksumException("Unknown shard header, version " + version, -1);
+        }
+        int codec = shard[1];
+        int length = Bytes.toInt(shard, 2);
+        byte[] bytes;
+        int offset;
+        if (codec == 0) {
+            if (shard.length - HEADER_SIZE != length) {
+                throw new ChecksumException("The shard should have " + length
+                        + " bytes, but it has " + (shard.length - HEADER_SIZE), -1);
+            }
+            bytes = shard;
+            offset = HEADER_SIZE;
+        } else {
+            bytes = new byte[length];
+            offset = 0;
+            Decompressor decompressor = CodecPool.getDecompressor(codec(codec));
+            try (InputStream in = codec(codec).createInputStream(
+                    new ByteArrayInputStream(shard, HEADER_SIZE, shard.length - HEADER_SIZE), decompressor)) {
+                IOUtils.readFully(in, bytes, 0, length);
+            } catch (IOException ex) {
+                //压缩的数据损坏时，解压也会失败
+                throw (ChecksumException) new ChecksumException(
+                        "Fail to decompress the shard: " + ex.getMessage(), -1).initCause(ex);
+            } finally {
+                CodecPool.returnDecompressor(decompressor);
+            }
+        }
+        if (crc32c(bytes, offset, length) != Bytes.toInt(shard, 6)) {
+            throw new ChecksumException("The crc32c of the shard does not match.", -1);
+        }
+        return ByteBuffer.wrap(bytes, offset, length);
+    }
+
+    static int crc32c(byte[] bytes, int offset, int length) {
+        PureJavaCrc32C crc = new PureJavaCrc32C();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static synchronized CompressionCodec codec(int id) throws IOException {
+        if (id <= 0 || id >= NAMES.length) {
+            throw new IOException("Unknown codec id in the shard header: " + id);
+        }
+        if (codecs[id] == null) {
+            try {
+                Class<?> clazz = Class.forName(CLASSES[id]);
+                codecs[id] = (CompressionCodec) ReflectionUtils.newInstance(clazz, HBaseFileHelper.conf());
+            } catch (ClassNotFoundException ex) {
+                throw new IOException("The codec " + NAMES[id] + " is not on the classpath.", ex);
+            }
+        }
+        return codecs[id];
+    }
+
+}
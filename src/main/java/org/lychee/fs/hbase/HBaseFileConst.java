@@ -63,6 +63,34 @@ class HBaseFileConst {
     final static byte[] M_SHARDS = Bytes.toBytes("shards");
     final static byte[] M_STATUS = Bytes.toBytes("status");
     final static byte[] M_CREATE_TIME = Bytes.toBytes("ctime");
+    /**
+     * the shard size of the file, the files without it use 1 MB.
+     */
+    final static byte[] M_SHARD_SIZE = Bytes.toBytes("ssize");
+    /**
+     * the content of a small file, it's read together with the meta.
+     */
+    final static byte[] M_INLINE = Bytes.toBytes("inline");
+    /**
+     * the md5 digest of the whole file, it's written at commit.
+     */
+    final static byte[] M_MD5 = Bytes.toBytes("md5");
+    /**
+     * the identifier of the row holding the shards, if it's not this row.
+     * A file uploaded by stream is linked to its staging row.
+     */
+    final static byte[] M_LINK = Bytes.toBytes("link");
+    /**
+     * the chunk list of a chunked file, every entry is the sha1 of the chunk
+     * and its length in 4 bytes. The file has no shards of its own.
+     */
+    final static byte[] M_CHUNKS = Bytes.toBytes("chunks");
+    /**
+     * the codec of the file, eg. "deflate" or "none". The shards of a file
+     * with it have the header of HBaseFileCodec with the crc32c, the shards
+     * of the old files without it are raw.
+     */
+    final static byte[] M_CODEC = Bytes.toBytes("codec");
 //    private final static byte[] M_MODIFY_TIME= Bytes.toBytes("mtime");
     
     /**
@@ -72,4 +100,231 @@ class HBaseFileConst {
      */
     final static byte[] CF_SHARDS = Bytes.toBytes("s");
 
+    /**
+     * how many shards are in one row, the file with it spreads its shards
+     * over the sub-rows. The old files without it have one row.
+     */
+    final static byte[] M_BLOCK_SHARDS = Bytes.toBytes("bshards");
+
+    /**
+     * The name of the table which been used to store the chunks, shared by
+     * all the chunked files.
+     */
+    final static String CHUNK_TABLE_NAME = "FILE_SYSTEM_CHUNK_TABLE";
+
+    /**
+     * the column family of the chunk table, the row key is the sha1 of the
+     * chunk. "refs" counts the files using it.
+     */
+    final static byte[] CF_CHUNK = Bytes.toBytes("c");
+    final static byte[] C_DATA = Bytes.toBytes("data");
+    final static byte[] C_REFS = Bytes.toBytes("refs");
+
+    /**
+     * an entry of the chunk list, sha1 and length.
+     */
+    final static int CHUNK_HASH_SIZE = 20;
+    final static int CHUNK_ENTRY_SIZE = CHUNK_HASH_SIZE + 4;
+
+    /**
+     * the identifiers of the staging rows start with it, they are hidden
+     * from the scan.
+     */
+    final static String STAGING_PREFIX = ".staging-";
+
+    /**
+     * the size of every shard except the last one, if the file does not say.
+     */
+    final static int DEFAULT_SHARD_SIZE = 1024 * 1024;
+
+    // -------------------------------CONFIG------------------------------
+    /**
+     * which HBaseFileStore to use, "hbase" or "memory". It can be set in
+     * hbase-site.xml or as a system property.
+     */
+    final static String STORE_KEY = "hbase.fs.store";
+    final static String STORE_HBASE = "hbase";
+    final static String STORE_MEMORY = "memory";
+
+    /**
+     * the name of the table, FILE_SYSTEM_TABLE_NAME by default.
+     */
+    final static String TABLE_NAME_KEY = "hbase.fs.table";
+
+    /**
+     * how many idle table handles are kept for reuse.
+     */
+    final static String TABLE_POOL_SIZE_KEY = "hbase.fs.table.pool.size";
+    final static int DEFAULT_TABLE_POOL_SIZE = 32;
+
+    /**
+     * write new files in content defined chunks, shared between the files.
+     */
+    final static String CHUNKING_KEY = "hbase.fs.chunking";
+    final static boolean DEFAULT_CHUNKING = false;
+
+    /**
+     * the name of the chunk table, CHUNK_TABLE_NAME by default.
+     */
+    final static String CHUNK_TABLE_KEY = "hbase.fs.chunk.table";
+
+    /**
+     * the sizes of the chunks. The max size must not be larger than
+     * "hbase.client.keyvalue.maxsize".
+     */
+    final static String CHUNK_MIN_SIZE_KEY = "hbase.fs.chunk.min.size";
+    final static int DEFAULT_CHUNK_MIN_SIZE = 256 * 1024;
+    final static String CHUNK_AVG_SIZE_KEY = "hbase.fs.chunk.avg.size";
+    final static int DEFAULT_CHUNK_AVG_SIZE = 1024 * 1024;
+    final static String CHUNK_MAX_SIZE_KEY = "hbase.fs.chunk.max.size";
+    final static int DEFAULT_CHUNK_MAX_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * the shard size of new files. It must not be larger than
+     * "hbase.client.keyvalue.maxsize".
+     */
+    final static String SHARD_SIZE_KEY = "hbase.fs.shard.size";
+
+    /**
+     * at most this many shards of a new file are in one row, the others go
+     * to the sub-rows, so a large file can be split over the regions. 0 to
+     * keep all the shards in one row.
+     */
+    final static String BLOCK_SHARDS_KEY = "hbase.fs.block.shards";
+    final static int DEFAULT_BLOCK_SHARDS = 64;
+
+    /**
+     * the rows are prefixed by one salt byte, the hash of the identifier mod
+     * the buckets, so the new files are spread over the pre-split regions. 0
+     * to disable, at most 256. It's a property of the table, never change it
+     * once there are files.
+     */
+    final static String SALT_BUCKETS_KEY = "hbase.fs.salt.buckets";
+    final static int DEFAULT_SALT_BUCKETS = 0;
+    final static int MAX_SALT_BUCKETS = 256;
+
+    /**
+     * store the md5, sha-1 and sha-256 identifiers in lower case hex as the
+     * raw digest in the row key, 17/21/33 bytes instead of 32/40/64. It's a
+     * property of the table, never change it once there are files.
+     */
+    final static String IDENTIFIER_BINARY_KEY = "hbase.fs.identifier.binary";
+    final static boolean DEFAULT_IDENTIFIER_BINARY = false;
+
+    /**
+     * how many bytes of the INTEGRITY files' meta are kept in the client, 0
+     * to disable. The inline content is counted. The cached meta lives for
+     * the ttl in milliseconds.
+     */
+    final static String META_CACHE_BYTES_KEY = "hbase.fs.meta.cache.bytes";
+    final static long DEFAULT_META_CACHE_BYTES = 0;
+    final static String META_CACHE_TTL_KEY = "hbase.fs.meta.cache.ttl";
+    final static long DEFAULT_META_CACHE_TTL = 60 * 1000L;
+
+    /**
+     * the files not larger than this are stored in the meta row, 0 to
+     * disable. It's no use to be larger than the shard size.
+     */
+    final static String INLINE_THRESHOLD_KEY = "hbase.fs.inline.threshold";
+    final static int DEFAULT_INLINE_THRESHOLD = 64 * 1024;
+
+    /**
+     * the codec to compress the shards of new files: none, deflate, gzip,
+     * bzip2, snappy or lz4.
+     */
+    final static String CODEC_KEY = "hbase.fs.codec";
+    final static String DEFAULT_CODEC = "none";
+
+    /**
+     * whether HBaseFileInputStream checks the md5 of the file when it has
+     * read the whole file from the start.
+     */
+    final static String READ_VERIFY_MD5_KEY = "hbase.fs.read.verify.md5";
+    final static boolean DEFAULT_READ_VERIFY_MD5 = true;
+
+    /**
+     * whether a broken upload is resumed, the shards in the hbase are read
+     * back and compared with the local file. If not, the file is uploaded
+     * again.
+     */
+    final static String RESUME_VERIFY_KEY = "hbase.fs.upload.resume.verify";
+    final static boolean DEFAULT_RESUME_VERIFY = true;
+
+    /**
+     * a local file at least this large is uploaded in parallel parts, one
+     * shard each, read with positional reads. 0 to always upload it as one
+     * stream.
+     */
+    final static String UPLOAD_PARALLEL_THRESHOLD_KEY = "hbase.fs.upload.parallel.threshold";
+    final static long DEFAULT_UPLOAD_PARALLEL_THRESHOLD = 64L * 1024 * 1024;
+
+    /**
+     * at most this many bytes of shards are read in one Get.
+     */
+    final static String READ_BATCH_BYTES_KEY = "hbase.fs.read.batch.bytes";
+    final static long DEFAULT_READ_BATCH_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * how many shards HBaseFileInputStream fetches ahead, 0 to disable.
+     */
+    final static String READ_AHEAD_SHARDS_KEY = "hbase.fs.read.ahead.shards";
+    final static int DEFAULT_READ_AHEAD_SHARDS = 4;
+
+    /**
+     * at most this many bytes are fetched ahead by one stream.
+     */
+    final static String READ_AHEAD_BYTES_KEY = "hbase.fs.read.ahead.bytes";
+    final static long DEFAULT_READ_AHEAD_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * the size of the thread pool shared by all the read-ahead fetches.
+     */
+    final static String READ_AHEAD_THREADS_KEY = "hbase.fs.read.ahead.threads";
+    final static int DEFAULT_READ_AHEAD_THREADS = 16;
+
+    /**
+     * whether HBaseFileOutputStream puts the shards in background.
+     */
+    final static String WRITE_ASYNC_KEY = "hbase.fs.write.async";
+    final static boolean DEFAULT_WRITE_ASYNC = false;
+
+    /**
+     * at most this many bytes of one stream are waiting to be put, the
+     * writer blocks when it's reached.
+     */
+    final static String WRITE_BUFFER_BYTES_KEY = "hbase.fs.write.buffer.bytes";
+    final static long DEFAULT_WRITE_BUFFER_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * the size of the thread pool shared by all the background puts.
+     */
+    final static String WRITE_THREADS_KEY = "hbase.fs.write.threads";
+    final static int DEFAULT_WRITE_THREADS = 8;
+
+    /**
+     * at most this many bytes of idle shard buffers are kept for the next
+     * streams, 0 to allocate them every time.
+     */
+    final static String BUFFER_POOL_BYTES_KEY = "hbase.fs.buffer.pool.bytes";
+    final static long DEFAULT_BUFFER_POOL_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * how many batches of shards a download fetches and writes at a time.
+     */
+    final static String DOWNLOAD_PARALLEL_KEY = "hbase.fs.download.parallel";
+    final static int DEFAULT_DOWNLOAD_PARALLEL = 4;
+
+    /**
+     * a download puts the shards into the mapped local file.
+     */
+    final static String DOWNLOAD_MMAP_KEY = "hbase.fs.download.mmap";
+    final static boolean DEFAULT_DOWNLOAD_MMAP = false;
+
+    /**
+     * the size of the thread pool shared by the batch uploads and downloads,
+     * one file per thread.
+     */
+    final static String TRANSFER_THREADS_KEY = "hbase.fs.transfer.threads";
+    final static int DEFAULT_TRANSFER_THREADS = 5;
+
 }
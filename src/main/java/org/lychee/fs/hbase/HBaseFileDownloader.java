@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+
+import static org.lychee.fs.hbase.HBaseFileConst.*;
+
+/**
+ *
+ * Download a file into a local file with positional writes. <br/>
+ *
+ * The local file is preallocated to the size of the file, the shards are
+ * fetched in batches of "hbase.fs.read.batch.bytes" on the read-ahead pool,
+ * "hbase.fs.download.parallel" batches at a time, and every batch is
+ * written at its offset as soon as it arrives, out of order. With
+ * "hbase.fs.download.mmap" the batches are put into a mapped region instead
+ * of FileChannel.write. <br/>
+ *
+ * The md5 of the file is still checked: the batches are taken in order by
+ * the calling thread after they are written.
+ *
+ * @author chunhui
+ * @see HBaseFileUtils#download(String, File)
+ */
+class HBaseFileDownloader {
+
+    private final HBaseFile hbFile;
+    private final int batchSize;
+    private final int parallel;
+    private final boolean mmap;
+
+    HBaseFileDownloader(HBaseFile hbFile) {
+        this.hbFile = hbFile;
+        Configuration conf = HBaseFileHelper.conf();
+        long batchBytes = conf.getLong(READ_BATCH_BYTES_KEY, DEFAULT_READ_BATCH_BYTES);
+        this.batchSize = (int) Math.max(1, Math.min(batchBytes / hbFile.getShardSize(), Integer.MAX_VALUE));
+        this.parallel = Math.max(1, conf.getInt(DOWNLOAD_PARALLEL_KEY, DEFAULT_DOWNLOAD_PARALLEL));
+        this.mmap = conf.getBoolean(DOWNLOAD_MMAP_KEY, DEFAULT_DOWNLOAD_MMAP);
+    }
+
+    /**
+     * the local file is replaced, and deleted if the download fails after
+     * that. It's not touched if the file is not integrity.
+     *
+     * @param localFile
+     * @throws IOException
+     */
+    void download(File localFile) throws IOException {
+        if (!hbFile.integrity()) {
+            throw new IOException("Fail to read the file in the hbase file system.");
+        }
+        MessageDigest md5 = hbFile.getMd5Bytes() != null
+                && HBaseFileHelper.conf().getBoolean(READ_VERIFY_MD5_KEY, DEFAULT_READ_VERIFY_MD5)
+                ? HBaseFileHelper.md5Digest() : null;
+        FileUtils.deleteQuietly(localFile);
+        boolean done = false;
+        Deque<Future<ByteBuffer[]>> batches = new ArrayDeque<Future<ByteBuffer[]>>();
+        try (RandomAccessFile raf = new RandomAccessFile(localFile, "rw")) {
+            //预分配文件，分片可以乱序写入
+            raf.setLength(hbFile.getSize());
+            FileChannel channel = raf.getChannel();
+            long written = 0;
+            int shard = 1;
+            while (shard <= hbFile.getShards() || !batches.isEmpty()) {
+                while (batches.size() < parallel && shard <= hbFile.getShards()) {
+                    int to = (int) Math.min((long) shard + batchSize - 1, hbFile.getShards());
+                    batches.add(HBaseFileExecutors.readAhead().submit(new BatchWriter(channel, shard, to)));
+                    shard = to + 1;
+                }
+                //按顺序取回，计算md5
+                for (ByteBuffer bytes : HBaseFileExecutors.get(batches.poll())) {
+                    written += bytes.remaining();
+                    if (md5 != null) {
+                        md5.update(bytes);
+                    }
+                }
+            }
+            if (written != hbFile.getSize()) {
+                throw new ChecksumException("The shards of " + hbFile.getIdentifier() + " have "
+                        + written + " bytes, but the file has " + hbFile.getSize(), written);
+            }
+            if (md5 != null && !MessageDigest.isEqual(md5.digest(), hbFile.getMd5Bytes())) {
+                throw new ChecksumException("The md5 of " + hbFile.getIdentifier()
+                        + " does not match.", written);
+            }
+            done = true;
+        } finally {
+            Future<ByteBuffer[]> batch;
+            while ((batch = batches.poll()) != null) {
+                batch.cancel(false);
+            }
+            if (!done) {
+                FileUtils.deleteQuietly(localFile);
+            }
+        }
+    }
+
+    /**
+     * fetch a batch of shards and write them at their offset.
+     */
+    private class BatchWriter implements Callable<ByteBuffer[]> {
+
+        private final FileChannel channel;
+        private final int from;
+        private final int to;
+
+        BatchWriter(FileChannel channel, int from, int to) {
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public ByteBuffer[] call() throws IOException {
+            ByteBuffer[] shards = HBaseFileHelper.readShards(hbFile, from, to);
+            long start = hbFile.shardOffset(from);
+            long length = 0;
+            for (int i = 0; i < shards.length; i++) {
+                if (shards[i] == null) {
+                    throw new IOException("Shard " + (from + i) + " of "
+                            + hbFile.getIdentifier() + " is missing.");
+                }
+                length += shards[i].remaining();
+            }
+            if (start + length > hbFile.getSize()) {
+                throw new ChecksumException("The shards " + from + "-" + to + " of "
+                        + hbFile.getIdentifier() + " are beyond the size of the file.", start);
+            }
+            if (mmap) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+                for (ByteBuffer bytes : shards) {
+                    region.put(bytes.duplicate());
+                }
+            } else {
+                long position = start;
+                for (ByteBuffer bytes : shards) {
+                    ByteBuffer buf = bytes.duplicate();
+                    while (buf.hasRemaining()) {
+                        position += channel.write(buf, position);
+                    }
+                }
+            }
+            return shards;
+        }
+    }
+
+}
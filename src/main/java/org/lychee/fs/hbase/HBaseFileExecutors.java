@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static org.lychee.fs.hbase.HBaseFileConst.*;
+
+/**
+ *
+ * The shared thread pools of the file system. <br/>
+ *
+ * They are created on first use, sized by the configuration, and their
+ * threads are daemons, so they never keep the jvm alive. The configuration
+ * is read before taking the lock of this class, HBaseFileHelper stops the
+ * pools while holding its own lock.
+ *
+ * @author chunhui
+ */
+class HBaseFileExecutors {
+
+    private static volatile ExecutorService readAhead;
+
+    private static volatile ExecutorService upload;
+
+    private static volatile ExecutorService transfer;
+
+    private HBaseFileExecutors() {
+    }
+
+    /**
+     * the pool fetching shards for HBaseFileInputStream.
+     *
+     * @return
+     */
+    static ExecutorService readAhead() {
+        ExecutorService pool = readAhead;
+        if (pool != null) {
+            return pool;
+        }
+        int threads = HBaseFileHelper.conf().getInt(READ_AHEAD_THREADS_KEY, DEFAULT_READ_AHEAD_THREADS);
+        synchronized (HBaseFileExecutors.class) {
+            if (readAhead == null) {
+                readAhead = newPool("hbase-fs-read-ahead-%d", threads);
+            }
+            return readAhead;
+        }
+    }
+
+    /**
+     * the pool putting shards for HBaseFileOutputStream.
+     *
+     * @return
+     */
+    static ExecutorService upload() {
+        ExecutorService pool = upload;
+        if (pool != null) {
+            return pool;
+        }
+        int threads = HBaseFileHelper.conf().getInt(WRITE_THREADS_KEY, DEFAULT_WRITE_THREADS);
+        synchronized (HBaseFileExecutors.class) {
+            if (upload == null) {
+                upload = newPool("hbase-fs-upload-%d", threads);
+            }
+            return upload;
+        }
+    }
+
+    /**
+     * the pool of the batch uploads and downloads, one file per thread.
+     *
+     * @return
+     */
+    static ExecutorService transfer() {
+        ExecutorService pool = transfer;
+        if (pool != null) {
+            return pool;
+        }
+        int threads = HBaseFileHelper.conf().getInt(TRANSFER_THREADS_KEY, DEFAULT_TRANSFER_THREADS);
+        synchronized (HBaseFileExecutors.class) {
+            if (transfer == null) {
+                transfer = newPool("hbase-fs-transfer-%d", threads);
+            }
+            return transfer;
+        }
+    }
+
+    /**
+     * stop the shared pools, they will be created again when needed.
+     */
+    static synchronized void shutdown() {
+        if (readAhead != null) {
+            readAhead.shutdown();
+            readAhead = null;
+        }
+        if (upload != null) {
+            upload.shutdown();
+            upload = null;
+        }
+        if (transfer != null) {
+            transfer.shutdown();
+            transfer = null;
+        }
+    }
+
+    static ExecutorService newPool(String nameFormat, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * wait for the future, and rethrow its failure as an IOException.
+     *
+     * @param future
+     * @return
+     * @throws IOException
+     */
+    static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for hbase.");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+}
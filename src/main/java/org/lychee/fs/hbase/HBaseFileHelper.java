@@ -16,20 +16,27 @@
 package org.lychee.fs.hbase;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.KeyValue;
-import org.apache.hadoop.hbase.client.Delete;
-import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HConnection;
-import org.apache.hadoop.hbase.client.HConnectionManager;
-import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
-import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.MurmurHash;
 
 import static org.lychee.fs.hbase.HBaseFileConst.*;
 
@@ -40,43 +47,244 @@ import org.slf4j.LoggerFactory;
  *
  * Just for internal use. It will be replaced with another implemention.
  *
- * TODO need to imporve the performance. TODO need to be thread safe.
+ * All the reads and writes go through a HBaseFileStore. By default it's the
+ * hbase cluster configured by hbase-site.xml, set "hbase.fs.store" to
+ * "memory" to run without a cluster.
+ *
+ * TODO need to imporve the performance.
  *
  * @author chunhui
+ * @see HBaseFileStore
  */
 class HBaseFileHelper {
 
     private static final Logger log = LoggerFactory.getLogger(HBaseFileHelper.class);
 
-    private static HTableInterface fsTable;
+    /**
+     * read without the lock, every shard goes through them. They are only
+     * replaced under the lock.
+     */
+    private static volatile Configuration conf;
+
+    private static volatile HBaseFileStore store;
 
-    static {
-        try {
-            Configuration conf = HBaseConfiguration.create();
-            HConnection connection = HConnectionManager.createConnection(conf);
-            fsTable = connection.getTable(FILE_SYSTEM_TABLE_NAME);
-        } catch (IOException ex) {
-            String msg = "Fail to connect to the hbase cluster. Please recheck.";
-            log.error(msg, ex);
-            throw new RuntimeException(msg, ex);
+    /**
+     * the salt buckets of the table, -1 before read from the conf.
+     */
+    private static volatile int saltBuckets = -1;
+
+    /**
+     * whether the digest identifiers are stored binary, null before read
+     * from the conf.
+     */
+    private static volatile Boolean binaryIdentifiers;
+
+    /**
+     * the first byte of a binary identifier, no text identifier starts with
+     * it.
+     */
+    private static final byte BINARY_IDENTIFIER = 0x00;
+
+    /**
+     * the meta of the INTEGRITY files by identifier, null if it's disabled.
+     */
+    private static volatile Cache<String, Result> metaCache;
+
+    private static volatile boolean metaCacheBuilt;
+
+    /**
+     * counts the invalidations, a meta read while a write is going on is not
+     * cached.
+     */
+    private static final AtomicLong metaWrites = new AtomicLong();
+
+    /**
+     * weighs a cached meta by its bytes, the inline content and the chunk
+     * list are the large ones.
+     */
+    private static final Weigher<String, Result> META_WEIGHER = new Weigher<String, Result>() {
+        @Override
+        public int weigh(String identifier, Result result) {
+            int bytes = identifier.length();
+            for (KeyValue kv : result.raw()) {
+                bytes += kv.getLength();
+            }
+            return bytes;
+        }
+    };
+
+    private static final byte[] SUB_ROW_SEPARATOR = {0x00};
+
+    /**
+     * how many shards are probed in one Get.
+     */
+    private static final int PROBE_BATCH = 1024;
+
+    static Configuration conf() {
+        Configuration c = conf;
+        if (c != null) {
+            return c;
+        }
+        synchronized (HBaseFileHelper.class) {
+            if (conf == null) {
+                conf = HBaseConfiguration.create();
+            }
+            return conf;
+        }
+    }
+
+    static HBaseFileStore store() {
+        HBaseFileStore s = store;
+        if (s != null) {
+            return s;
+        }
+        synchronized (HBaseFileHelper.class) {
+            if (store == null) {
+                String kind = System.getProperty(STORE_KEY, conf().get(STORE_KEY, STORE_HBASE));
+                if (STORE_MEMORY.equalsIgnoreCase(kind)) {
+                    store = new HBaseFileMemoryStore();
+                } else {
+                    try {
+                        store = new HBaseFileTableStore(conf());
+                    } catch (IOException ex) {
+                        String msg = "Fail to connect to the hbase cluster. Please recheck.";
+                        log.error(msg, ex);
+                        throw new RuntimeException(msg, ex);
+                    }
+                }
+                log.debug("HBase file store: {}", store.getClass().getSimpleName());
+            }
+            return store;
+        }
+    }
+
+    /**
+     * replace the store, eg. with a HBaseFileMemoryStore in tests.
+     *
+     * @param newStore
+     */
+    static synchronized void setStore(HBaseFileStore newStore) {
+        store = newStore;
+        invalidateMetaCache();
+    }
+
+    /**
+     * use another configuration, the current store is closed and a new one
+     * is created from the configuration when needed.
+     *
+     * @param newConf
+     * @throws IOException
+     */
+    static void configure(Configuration newConf) throws IOException {
+        shutdown();
+        synchronized (HBaseFileHelper.class) {
+            conf = newConf;
+            saltBuckets = -1;
+            binaryIdentifiers = null;
+            metaCache = null;
+            metaCacheBuilt = false;
+        }
+    }
+
+    /**
+     * close the store and stop the shared pools. The pools are stopped
+     * without holding the lock of this class.
+     *
+     * @throws IOException
+     */
+    static void shutdown() throws IOException {
+        HBaseFileExecutors.shutdown();
+        HBaseFileBufferPool.clear();
+        closeStore();
+    }
+
+    private static synchronized void closeStore() throws IOException {
+        invalidateMetaCache();
+        if (store != null) {
+            try {
+                store.close();
+            } finally {
+                store = null;
+            }
+        }
+    }
+
+    static int defaultShardSize() {
+        return conf().getInt(SHARD_SIZE_KEY, DEFAULT_SHARD_SIZE);
+    }
+
+    /**
+     * a shard is one cell, it must fit in "hbase.client.keyvalue.maxsize".
+     *
+     * @param shardSize
+     * @return the shardSize
+     */
+    static int checkShardSize(int shardSize) {
+        int maxKeyValueSize = conf().getInt("hbase.client.keyvalue.maxsize", -1);
+        if (shardSize <= 0) {
+            throw new IllegalArgumentException("The shard size must be positive: " + shardSize);
+        } else if (maxKeyValueSize > 0 && shardSize > maxKeyValueSize) {
+            throw new IllegalArgumentException("The shard size " + shardSize
+                    + " is larger than hbase.client.keyvalue.maxsize " + maxKeyValueSize);
         }
+        return shardSize;
+    }
+
+    /**
+     * the layout of a new file from the conf: shard size, codec and block
+     * shards.
+     */
+    static void setUpNewFile(HBaseFile hbFile, int shardSize) {
+        hbFile.setShardSize(checkShardSize(shardSize));
+        //不压缩时也记录，分片总是带有校验和
+        String codec = conf().get(CODEC_KEY, DEFAULT_CODEC).toLowerCase();
+        HBaseFileCodec.id(codec);
+        hbFile.setCodec(codec);
+        hbFile.setBlockShards(Math.max(0, conf().getInt(BLOCK_SHARDS_KEY, DEFAULT_BLOCK_SHARDS)));
     }
 
     static void saveOrUpdateMeta(HBaseFile hbFile) throws IOException {
-        byte[] idBytes = Bytes.toBytes(hbFile.getIdentifier());
-        Put put = new Put(idBytes);
-        put.add(new KeyValue(idBytes, CF_META, M_DESC, Bytes.toBytes(hbFile.getDesc())));
-        put.add(new KeyValue(idBytes, CF_META, M_SIZE, Bytes.toBytes(hbFile.getSize())));
-        put.add(new KeyValue(idBytes, CF_META, M_SHARDS, Bytes.toBytes(hbFile.getShards())));
-        put.add(new KeyValue(idBytes, CF_META, M_STATUS, new byte[]{hbFile.getStatus()}));
-        put.add(new KeyValue(idBytes, CF_META, M_CREATE_TIME, Bytes.toBytes(hbFile.getCreateTime())));
-        fsTable.put(put);
+        try {
+            store().saveOrUpdateMeta(hbFile);
+        } finally {
+            invalidateMeta(hbFile.getIdentifier());
+        }
+    }
+
+    /**
+     * commit a TRANSIT file with all its meta, and make it INTEGRITY.
+     *
+     * @param hbFile
+     * @throws IOException if the file has been changed or deleted by others.
+     */
+    static void commit(HBaseFile hbFile) throws IOException {
+        hbFile.setStatus(INTEGRITY);
+        boolean committed;
+        try {
+            committed = store().commit(hbFile);
+        } finally {
+            invalidateMeta(hbFile.getIdentifier());
+        }
+        if (!committed) {
+            hbFile.setStatus(TRANSIT);
+            throw new IOException("Fail to commit " + hbFile.getIdentifier()
+                    + ", it has been changed or deleted by others.");
+        }
     }
 
     static void readMeta(HBaseFile hbFile) throws IOException {
-        Get get = new Get(Bytes.toBytes(hbFile.getIdentifier()));
-        get.addFamily(CF_META);
-        Result result = fsTable.get(get);
+        Cache<String, Result> cache = metaCache();
+        Result result = cache == null ? null : cache.getIfPresent(hbFile.getIdentifier());
+        if (result == null) {
+            long writes = metaWrites.get();
+            result = store().readMeta(hbFile);
+            //只缓存完整的文件，它们不会再改变；读的时候有写入，可能是旧的，不缓存
+            if (cache != null && result != null && !result.isEmpty()
+                    && result.getValue(CF_META, M_STATUS)[0] == INTEGRITY
+                    && metaWrites.get() == writes) {
+                cache.put(hbFile.getIdentifier(), result);
+            }
+        }
         //如果HBase已经存在，读取存储信息（状态位由存储的决定）
         if (result != null && !result.isEmpty()) {
             readMeta(result, hbFile);
@@ -92,89 +300,565 @@ class HBaseFileHelper {
         hbFile.setShards(Bytes.toInt(result.getValue(CF_META, M_SHARDS)));
         hbFile.setStatus(result.getValue(CF_META, M_STATUS)[0]);
         hbFile.setCreateTime(Bytes.toLong(result.getValue(CF_META, M_CREATE_TIME)));
+        byte[] shardSize = result.getValue(CF_META, M_SHARD_SIZE);
+        hbFile.setShardSize(shardSize == null ? DEFAULT_SHARD_SIZE : Bytes.toInt(shardSize));
+        hbFile.setInline(result.getValue(CF_META, M_INLINE));
+        hbFile.setMd5(result.getValue(CF_META, M_MD5));
+        hbFile.setLink(Bytes.toString(result.getValue(CF_META, M_LINK)));
+        hbFile.setChunks(result.getValue(CF_META, M_CHUNKS));
+        hbFile.setCodec(Bytes.toString(result.getValue(CF_META, M_CODEC)));
+        byte[] blockShards = result.getValue(CF_META, M_BLOCK_SHARDS);
+        hbFile.setBlockShards(blockShards == null ? 0 : Bytes.toInt(blockShards));
     }
 
-    static void addShard(HBaseFile hbFile, byte[] shard) throws IOException {
-        if (hbFile.isTransit() && shard != null && shard.length > 0) {
-            byte[] idBytes = Bytes.toBytes(hbFile.getIdentifier());
-            Put put = new Put(idBytes);
-            byte[] shardNo = Bytes.toBytes(hbFile.getShards());
-            put.add(CF_SHARDS, shardNo, shard);
-            put.add(CF_META, M_SHARDS, shardNo);
-            put.add(CF_META, M_SIZE, Bytes.toBytes(hbFile.getSize()));
-            fsTable.put(put);
+    /**
+     * put a shard of a shard buffer, the header is put in the room before
+     * the bytes, so a shard kept raw is copied only into the KeyValue.
+     *
+     * @param buffer see HBaseFileBufferPool#takeShard(int).
+     * @param length the bytes of the shard.
+     */
+    static void addShardBuffer(HBaseFile hbFile, int shard, byte[] buffer, int length) throws IOException {
+        if (!hbFile.isTransit() || length <= 0) {
+            return;
+        }
+        if (hbFile.getCodec() == null) {
+            store().addShard(hbFile, shard, buffer, HBaseFileBufferPool.SHARD_ROOM, length);
+            return;
         }
+        ByteBuffer encoded = HBaseFileCodec.encode(HBaseFileCodec.id(hbFile.getCodec()), buffer, length);
+        store().addShard(hbFile, shard, encoded.array(),
+                encoded.arrayOffset() + encoded.position(), encoded.remaining());
     }
 
-    static byte[] readShard(HBaseFile hbFile, int shard) throws IOException {
+    static ByteBuffer readShard(HBaseFile hbFile, int shard) throws IOException {
         if (!hbFile.integrity()) {
             return null;
         }
-        byte[] shards = null;
-        byte[] idBytes = Bytes.toBytes(hbFile.getIdentifier());
-        Get get = new Get(idBytes);
-        get.addColumn(CF_SHARDS, Bytes.toBytes(shard));
-        Result result = fsTable.get(get);
-        if (result != null && !result.isEmpty()) {
-            shards = result.getValue(CF_SHARDS, Bytes.toBytes(shard));
+        if (hbFile.getInline() != null || hbFile.getChunks() != null) {
+            return readShards(hbFile, shard, shard)[0];
+        }
+        return decode(hbFile, new byte[][]{store().readShard(hbFile, shard)}, shard)[0];
+    }
+
+    /**
+     * the content of a small file is its only shard, it has been read with
+     * the meta. The shards are decompressed in the calling thread, the
+     * read-ahead thread of the HBaseFileInputStream. <br/>
+     * The shards are wrapped, the bytes of a shard are from the position to
+     * the limit of its buffer.
+     */
+    static ByteBuffer[] readShards(HBaseFile hbFile, int from, int to) throws IOException {
+        if (!hbFile.integrity()) {
+            return null;
+        }
+        if (hbFile.getInline() != null) {
+            ByteBuffer[] shards = new ByteBuffer[to - from + 1];
+            if (from <= 1 && to >= 1) {
+                shards[1 - from] = ByteBuffer.wrap(hbFile.getInline());
+            }
+            return shards;
+        }
+        if (hbFile.getChunks() != null) {
+            to = Math.min(to, hbFile.getShards());
+            byte[][] hashes = new byte[Math.max(0, to - from + 1)][];
+            for (int shard = from; shard <= to; shard++) {
+                hashes[shard - from] = chunkHash(hbFile.getChunks(), shard);
+            }
+            //块总是带有头部
+            return decode(hbFile, store().readChunks(hashes), from);
+        }
+        return readStoredShards(hbFile, from, to);
+    }
+
+    /**
+     * read the shards in the shard family, the file may be TRANSIT.
+     */
+    static ByteBuffer[] readStoredShards(HBaseFile hbFile, int from, int to) throws IOException {
+        return decode(hbFile, store().readShards(hbFile, from, to), from);
+    }
+
+    /**
+     * how many shards from the first one are in the hbase, the bytes are
+     * not read.
+     *
+     * @param hbFile
+     * @param max look no further.
+     * @return
+     */
+    static int storedShards(HBaseFile hbFile, int max) throws IOException {
+        int shards = 0;
+        while (shards < max) {
+            int to = Math.min(max, shards + PROBE_BATCH);
+            boolean[] stored = store().hasShards(hbFile, shards + 1, to);
+            for (boolean s : stored) {
+                if (!s) {
+                    return shards;
+                }
+                shards++;
+            }
         }
         return shards;
     }
 
+    /**
+     * delete the file, and the staging row it links to. The chunks of a
+     * chunked file are deleted if no other file uses them.
+     */
     static void delete(HBaseFile hbFile) throws IOException {
-        Delete del = new Delete(Bytes.toBytes(hbFile.getIdentifier()));
-        fsTable.delete(del);
+        try {
+            store().delete(hbFile);
+        } finally {
+            invalidateMeta(hbFile.getIdentifier());
+        }
+        if (hbFile.getLink() != null) {
+            HBaseFile staged = new HBaseFile(hbFile.getLink());
+            staged.setBlockShards(hbFile.getBlockShards());
+            try {
+                store().delete(staged);
+            } finally {
+                invalidateMeta(staged.getIdentifier());
+            }
+        }
+        if (hbFile.getChunks() != null) {
+            releaseChunks(hbFile.getChunks());
+        }
+    }
+
+    /**
+     * store a chunk of a file, the bytes are put only if the chunk is not in
+     * the chunk table.
+     *
+     * @param hash the sha1 of the chunk.
+     */
+    static void addChunk(HBaseFile hbFile, byte[] hash, byte[] bytes, int offset, int length) throws IOException {
+        boolean exists = store().hasChunk(hash);
+        if (!exists) {
+            putChunk(hbFile, hash, bytes, offset, length);
+        }
+        //计数从0变为1，说明块在检查之后被删除了，重新写入
+        if (store().addChunkRefs(hash, 1) == 1 && exists) {
+            putChunk(hbFile, hash, bytes, offset, length);
+        }
+    }
+
+    /**
+     * the chunks are shared by the files, so they always have the header
+     * telling the codec really used.
+     */
+    private static void putChunk(HBaseFile hbFile, byte[] hash, byte[] bytes, int offset, int length) throws IOException {
+        byte codec = hbFile.getCodec() == null ? 0 : HBaseFileCodec.id(hbFile.getCodec());
+        byte[] chunk = HBaseFileCodec.encode(codec, bytes, offset, length);
+        store().putChunk(hash, chunk, 0, chunk.length);
+    }
+
+    /**
+     * decode the shards, a broken one fails with its shard number. The
+     * shards of an old file without the codec are only wrapped.
+     */
+    private static ByteBuffer[] decode(HBaseFile hbFile, byte[][] shards, int from) throws IOException {
+        ByteBuffer[] decoded = new ByteBuffer[shards.length];
+        boolean header = hbFile.getCodec() != null || hbFile.getChunks() != null;
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] == null) {
+                continue;
+            }
+            if (!header) {
+                decoded[i] = ByteBuffer.wrap(shards[i]);
+                continue;
+            }
+            try {
+                decoded[i] = HBaseFileCodec.decode(shards[i]);
+            } catch (ChecksumException ex) {
+                throw (ChecksumException) new ChecksumException("Shard " + (from + i)
+                        + " of " + hbFile.getIdentifier() + " is broken: " + ex.getMessage(),
+                        hbFile.shardOffset(from + i)).initCause(ex);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * drop one ref of every chunk in the list, delete the chunks not used.
+     */
+    static void releaseChunks(byte[] chunks) throws IOException {
+        for (int shard = 1; shard <= chunks.length / CHUNK_ENTRY_SIZE; shard++) {
+            byte[] hash = chunkHash(chunks, shard);
+            if (store().addChunkRefs(hash, -1) <= 0) {
+                store().deleteChunk(hash);
+            }
+        }
+    }
+
+    /**
+     * a new identifier to upload a file before its content hash is known.
+     *
+     * @return
+     */
+    static String stagingIdentifier() {
+        return STAGING_PREFIX + UUID.randomUUID().toString();
+    }
+
+    /**
+     * the staging identifier of a source, the same source gets the same one,
+     * so its broken upload can be found and resumed.
+     *
+     * @param source eg. the path, size and modify time of a local file.
+     * @return
+     */
+    static String stagingIdentifier(String source) {
+        return STAGING_PREFIX + Hex.encodeHexString(md5Digest().digest(Bytes.toBytes(source)));
+    }
+
+    static boolean isStaging(String identifier) {
+        return identifier.startsWith(STAGING_PREFIX);
+    }
+
+    /**
+     * give the INTEGRITY staging file its final identifier. A meta row is
+     * created under the identifier, linking to the shards in the staging
+     * row, so nothing is copied. The creation is atomic, if a file with the
+     * identifier is already INTEGRITY, the staging file is dropped and the
+     * existing file is returned, unless the existing file links to it. A
+     * broken file with the identifier is replaced.
+     *
+     * @param staged
+     * @param identifier
+     * @return the file with the identifier.
+     * @throws IOException
+     */
+    static HBaseFile link(HBaseFile staged, String identifier) throws IOException {
+        if (!staged.integrity()) {
+            throw new IOException("Fail to link " + staged.getIdentifier() + ", it's not integrity.");
+        }
+        HBaseFile hbFile = new HBaseFile(identifier);
+        hbFile.setDesc(staged.getDesc());
+        hbFile.setSize(staged.getSize());
+        hbFile.setShards(staged.getShards());
+        hbFile.setShardSize(staged.getShardSize());
+        hbFile.setMd5(staged.getMd5Bytes());
+        hbFile.setCreateTime(staged.getCreateTime());
+        hbFile.setCodec(staged.getCodec());
+        hbFile.setBlockShards(staged.getBlockShards());
+        hbFile.setStatus(INTEGRITY);
+        //小文件的内容和块列表在元数据里，直接复制，不需要链接
+        if (staged.getInline() != null) {
+            hbFile.setInline(staged.getInline());
+        } else if (staged.getChunks() != null) {
+            hbFile.setChunks(staged.getChunks());
+        } else {
+            hbFile.setLink(staged.getIdentifier());
+        }
+        if (!create(hbFile)) {
+            HBaseFile existing = new HBaseFile(identifier);
+            readMeta(existing);
+            if (existing.integrity()) {
+                //已经链接到这个暂存的文件，分片就在它的行里，不能删除
+                if (staged.getIdentifier().equals(existing.getLink())) {
+                    return existing;
+                }
+                //内容相同的文件已经存在，丢弃上传的文件
+                log.debug("{} exists, drop the staging file {}.", identifier, staged.getIdentifier());
+                delete(staged);
+                return existing;
+            }
+            //不完整的文件，先删除
+            if (existing.exists()) {
+                delete(existing);
+            }
+            if (!create(hbFile)) {
+                throw new IOException("Fail to link " + identifier
+                        + ", it has been changed by others.");
+            }
+        }
+        if (hbFile.getLink() == null) {
+            //块已经属于新的文件，只删除暂存的行
+            try {
+                store().delete(staged);
+            } finally {
+                invalidateMeta(staged.getIdentifier());
+            }
+        }
+        return hbFile;
+    }
+
+    private static boolean create(HBaseFile hbFile) throws IOException {
+        try {
+            return store().create(hbFile);
+        } finally {
+            invalidateMeta(hbFile.getIdentifier());
+        }
+    }
+
+    /**
+     * the meta cache, built from the conf at the first use. It's local to
+     * this jvm, a file deleted by another client may be seen until the ttl.
+     */
+    static Cache<String, Result> metaCache() {
+        if (metaCacheBuilt) {
+            return metaCache;
+        }
+        synchronized (HBaseFileHelper.class) {
+            if (metaCacheBuilt) {
+                return metaCache;
+            }
+            long bytes = conf().getLong(META_CACHE_BYTES_KEY, DEFAULT_META_CACHE_BYTES);
+            if (bytes > 0) {
+                metaCache = CacheBuilder.newBuilder()
+                        .maximumWeight(bytes)
+                        .weigher(META_WEIGHER)
+                        .expireAfterWrite(conf().getLong(META_CACHE_TTL_KEY, DEFAULT_META_CACHE_TTL),
+                                TimeUnit.MILLISECONDS)
+                        .build();
+            }
+            metaCacheBuilt = true;
+            return metaCache;
+        }
+    }
+
+    /**
+     * called after the store is written, a read cached before it is dropped
+     * and a read going on is not cached.
+     */
+    private static void invalidateMeta(String identifier) {
+        Cache<String, Result> cache = metaCache();
+        if (cache != null) {
+            metaWrites.incrementAndGet();
+            cache.invalidate(identifier);
+        }
+    }
+
+    private static synchronized void invalidateMetaCache() {
+        if (metaCache != null) {
+            metaCache.invalidateAll();
+        }
     }
 
     /*
      * 扫描Hbase里指定列簇的所有记录
      */
     static ResultScanner scan() throws IOException {
-        return fsTable.getScanner(CF_META);
+        return store().scan();
     }
-    
-    /*
-     * 获得Hbase里指定行Key的一个记录
+
+    // ----------------------------- row layout -----------------------------
+
+    static byte[] rowKey(HBaseFile hbFile) {
+        return rowKey(hbFile.getIdentifier());
+    }
+
+    /**
+     * the row of the identifier. With the salt buckets, the row is the salt
+     * byte + the identifier, the salt is the murmur hash of the identifier
+     * mod the buckets.
      */
-    static Result getResultByRowKey(String fileMD5) throws IOException {
-		Get get = new Get(Bytes.toBytes(fileMD5));
-	    get.addFamily(CF_META);
-	    Result result = fsTable.get(get);
-	    if (result != null && !result.isEmpty()) {
-	    	return result;
+    static byte[] rowKey(String identifier) {
+        byte[] id = encodeIdentifier(identifier);
+        int buckets = saltBuckets();
+        if (buckets == 0) {
+            return id;
         }
-	    else{
-	    	return null;
-	    }
+        int hash = MurmurHash.getInstance().hash(id, id.length, 0);
+        byte[] rowKey = new byte[id.length + 1];
+        rowKey[0] = (byte) ((hash & Integer.MAX_VALUE) % buckets);
+        System.arraycopy(id, 0, rowKey, 1, id.length);
+        return rowKey;
     }
-    
-    /*
-     * 遍历查询hbase表
-     * 
-     * @tableName 表名
+
+    /**
+     * the identifier of the row, without the salt.
      */
-     static void rawGetResultScann() throws IOException {
-        Scan scan = new Scan();
-        ResultScanner rs = null;
-        try {
-            rs = fsTable.getScanner(scan);
-            for (Result r : rs) {
-                for (KeyValue kv : r.list()) {
-                    System.out.println("row:" + Bytes.toString(kv.getRow()));
-                    System.out.println("family:"
-                            + Bytes.toString(kv.getFamily()));
-                    System.out.println("qualifier:"
-                            + Bytes.toString(kv.getQualifier()));
-                    System.out
-                            .println("value:" + Bytes.toString(kv.getValue()));
-                    System.out.println("timestamp:" + kv.getTimestamp());
-                    System.out
-                            .println("-------------------------------------------");
-                }
+    static String identifier(byte[] rowKey) {
+        int salt = saltLength();
+        int length = rowKey.length - salt;
+        if (length > 0 && rowKey[salt] == BINARY_IDENTIFIER && isDigestLength(length - 1)) {
+            return Hex.encodeHexString(Arrays.copyOfRange(rowKey, salt + 1, rowKey.length));
+        }
+        return Bytes.toString(rowKey, salt, length);
+    }
+
+    /**
+     * a md5, sha-1 or sha-256 identifier in lower case hex is stored as 0x00
+     * + the raw digest when "hbase.fs.identifier.binary" is on, the others as
+     * they are. Only the lower case is encoded, so it decodes to the same
+     * identifier.
+     */
+    static byte[] encodeIdentifier(String identifier) {
+        if (binaryIdentifiers() && isDigestLength(identifier.length() / 2)
+                && identifier.length() % 2 == 0 && isLowerHex(identifier)) {
+            byte[] id = new byte[identifier.length() / 2 + 1];
+            id[0] = BINARY_IDENTIFIER;
+            for (int i = 1; i < id.length; i++) {
+                id[i] = (byte) Integer.parseInt(identifier.substring(2 * i - 2, 2 * i), 16);
             }
-        } finally {
-            rs.close();
+            return id;
         }
+        return Bytes.toBytes(identifier);
+    }
+
+    private static boolean isDigestLength(int bytes) {
+        return bytes == 16 || bytes == 20 || bytes == 32;
+    }
+
+    private static boolean isLowerHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean binaryIdentifiers() {
+        Boolean binary = binaryIdentifiers;
+        if (binary == null) {
+            binary = conf().getBoolean(IDENTIFIER_BINARY_KEY, DEFAULT_IDENTIFIER_BINARY);
+            binaryIdentifiers = binary;
+        }
+        return binary;
+    }
+
+    /**
+     * the row holding the shards of the file.
+     */
+    static byte[] dataRowKey(HBaseFile hbFile) {
+        return hbFile.getLink() == null ? rowKey(hbFile) : rowKey(hbFile.getLink());
+    }
+
+    static int saltBuckets() {
+        int buckets = saltBuckets;
+        if (buckets < 0) {
+            buckets = conf().getInt(SALT_BUCKETS_KEY, DEFAULT_SALT_BUCKETS);
+            if (buckets < 0 || buckets > MAX_SALT_BUCKETS) {
+                throw new IllegalArgumentException(SALT_BUCKETS_KEY + " should be in [0, "
+                        + MAX_SALT_BUCKETS + "], but it's " + buckets);
+            }
+            saltBuckets = buckets;
+        }
+        return buckets;
+    }
+
+    static int saltLength() {
+        return saltBuckets() == 0 ? 0 : 1;
+    }
+
+    /**
+     * the first rows of the salt buckets, bucket b is in [b, b + 1), the
+     * last one has no end.
+     */
+    static byte[][] saltBucketStarts() {
+        byte[][] starts = new byte[saltBuckets()][];
+        for (int b = 0; b < starts.length; b++) {
+            starts[b] = new byte[]{(byte) b};
+        }
+        return starts;
+    }
+
+    /**
+     * the row of the shard. With the block layout, the first block of shards
+     * is in the data row with the meta, the block n (from 1) is in the
+     * sub-row: data row key + 0x00 + n (4 bytes). The sub-rows have no meta,
+     * the scan of the meta does not see them. <br/>
+     * The old files without "bshards" have all the shards in the data row.
+     *
+     * @param shard start from 1.
+     */
+    static byte[] shardRowKey(HBaseFile hbFile, int shard) {
+        byte[] rowKey = dataRowKey(hbFile);
+        int block = hbFile.getBlockShards() <= 0 ? 0 : (shard - 1) / hbFile.getBlockShards();
+        return block == 0 ? rowKey : Bytes.add(rowKey, SUB_ROW_SEPARATOR, Bytes.toBytes(block));
+    }
+
+    /**
+     * the sub-rows of the row are in [start, stop).
+     */
+    static byte[] subRowStart(byte[] rowKey) {
+        return Bytes.add(rowKey, SUB_ROW_SEPARATOR);
+    }
+
+    static byte[] subRowStop(byte[] rowKey) {
+        return Bytes.add(rowKey, new byte[]{(byte) (SUB_ROW_SEPARATOR[0] + 1)});
+    }
+
+    static MessageDigest md5Digest() {
+        return digest("MD5");
+    }
+
+    static MessageDigest sha1Digest() {
+        return digest("SHA-1");
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * the sha1 of the chunk in the chunk list.
+     *
+     * @param shard start from 1.
+     */
+    static byte[] chunkHash(byte[] chunks, int shard) {
+        int offset = (shard - 1) * CHUNK_ENTRY_SIZE;
+        return Arrays.copyOfRange(chunks, offset, offset + CHUNK_HASH_SIZE);
+    }
+
+    /**
+     * the length of the chunk in the chunk list.
+     *
+     * @param shard start from 1.
+     */
+    static int chunkLength(byte[] chunks, int shard) {
+        return Bytes.toInt(chunks, (shard - 1) * CHUNK_ENTRY_SIZE + CHUNK_HASH_SIZE);
+    }
+
+    static Put metaPut(HBaseFile hbFile) {
+        Put put = new Put(rowKey(hbFile));
+        put.add(CF_META, M_DESC, Bytes.toBytes(hbFile.getDesc()));
+        put.add(CF_META, M_SIZE, Bytes.toBytes(hbFile.getSize()));
+        put.add(CF_META, M_SHARDS, Bytes.toBytes(hbFile.getShards()));
+        put.add(CF_META, M_STATUS, new byte[]{hbFile.getStatus()});
+        put.add(CF_META, M_CREATE_TIME, Bytes.toBytes(hbFile.getCreateTime()));
+        put.add(CF_META, M_SHARD_SIZE, Bytes.toBytes(hbFile.getShardSize()));
+        if (hbFile.getInline() != null) {
+            put.add(CF_META, M_INLINE, hbFile.getInline());
+        }
+        if (hbFile.getMd5Bytes() != null) {
+            put.add(CF_META, M_MD5, hbFile.getMd5Bytes());
+        }
+        if (hbFile.getLink() != null) {
+            put.add(CF_META, M_LINK, Bytes.toBytes(hbFile.getLink()));
+        }
+        if (hbFile.getChunks() != null) {
+            put.add(CF_META, M_CHUNKS, hbFile.getChunks());
+        }
+        if (hbFile.getCodec() != null) {
+            put.add(CF_META, M_CODEC, Bytes.toBytes(hbFile.getCodec()));
+        }
+        if (hbFile.getBlockShards() > 0) {
+            put.add(CF_META, M_BLOCK_SHARDS, Bytes.toBytes(hbFile.getBlockShards()));
+        }
+        return put;
+    }
+
+    /**
+     * the shard bytes are copied into the KeyValue once, that's the only
+     * copy on the write path. <br/>
+     * A shard does not touch the meta, except the first one, which carries
+     * the meta of the TRANSIT file, so a broken upload can be found.
+     */
+    static Put shardPut(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+        Put put = shard == 1 ? metaPut(hbFile) : new Put(shardRowKey(hbFile, shard));
+        byte[] idBytes = put.getRow();
+        byte[] shardNo = Bytes.toBytes(shard);
+        put.add(new KeyValue(idBytes, 0, idBytes.length, CF_SHARDS, 0, CF_SHARDS.length,
+                shardNo, 0, shardNo.length, put.getTimeStamp(), KeyValue.Type.Put,
+                bytes, offset, length));
+        return put;
     }
 
 }
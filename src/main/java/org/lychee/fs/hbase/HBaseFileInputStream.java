@@ -16,54 +16,435 @@
 
 package org.lychee.fs.hbase;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+import static org.lychee.fs.hbase.HBaseFileConst.*;
 
 /**
  *
  * the InputStream impl of a HBase file. <br/>
- * 
- * Read a hbase file.like a common inputstream.
- * 
+ *
+ * Read a hbase file.like a common inputstream. The bytes are read shard by
+ * shard, use read(byte[], int, int) or transferTo to move a whole shard at a
+ * time. <br/>
+ *
+ * The shards are fetched in batches, up to "hbase.fs.read.batch.bytes" in one
+ * Get. While one batch is being consumed, the next few shards are fetched on
+ * a shared thread pool. The window is set by "hbase.fs.read.ahead.shards" and
+ * capped by "hbase.fs.read.ahead.bytes". <br/>
+ *
+ * Every shard is checked with its crc32c when it's fetched, a broken shard
+ * fails with a ChecksumException telling the shard. When the whole file is
+ * read from the start, its md5 is checked at the end too
+ * ("hbase.fs.read.verify.md5"), so there is no need to read it again to
+ * verify. <br/>
+ *
+ * It's seekable, and read(long, byte[], int, int) reads at any position
+ * without moving the stream, only the shards touched are fetched. The chunks
+ * of a chunked file are read like shards of different sizes.
+ *
  * @author chunhui
  * @see HBaseFile
  * @see HBaseFileOutputStream
  */
-public class HBaseFileInputStream extends InputStream {
-    
+public class HBaseFileInputStream extends InputStream implements Seekable, PositionedReadable {
+
     private final HBaseFile hbFile;
+    /**
+     * the first shard has not been fetched or scheduled.
+     */
     private int shard = 1;
-    
+
+    /**
+     * the current shard is cache[start, limit), it's not copied out of the
+     * shard read.
+     */
     private byte[] cache;
+    private int start;
+    private int limit;
     private int cursor;
-    
+    private boolean eof;
+    private boolean closed;
+
+    /**
+     * the position of cache[cursor] in the file.
+     */
+    private long pos;
+    /**
+     * where to start in the next shard read, set by seek.
+     */
+    private int seekInShard;
+
+    /**
+     * the batch in hand, the cache is one of them.
+     */
+    private ByteBuffer[] batch;
+    private int batchCursor;
+    private final int batchSize;
+
+    /**
+     * the batches fetching ahead, in order.
+     */
+    private final Deque<Future<ByteBuffer[]>> prefetches = new ArrayDeque<Future<ByteBuffer[]>>();
+    private final int batchesAhead;
+
+    /**
+     * the md5 of the shards fetched in order from the first one, it's null
+     * once a shard is skipped.
+     */
+    private MessageDigest md5;
+
     public HBaseFileInputStream(HBaseFile hbFile) {
+        this(hbFile, HBaseFileHelper.conf().getInt(READ_AHEAD_SHARDS_KEY, DEFAULT_READ_AHEAD_SHARDS));
+    }
+
+    /**
+     *
+     * @param hbFile
+     * @param readAhead how many shards to fetch ahead, 0 to read one by one.
+     */
+    public HBaseFileInputStream(HBaseFile hbFile, int readAhead) {
         this.hbFile = hbFile;
+        Configuration conf = HBaseFileHelper.conf();
+        int shardSize = hbFile.getShardSize();
+        long batchBytes = conf.getLong(READ_BATCH_BYTES_KEY, DEFAULT_READ_BATCH_BYTES);
+        this.batchSize = (int) Math.max(1, Math.min(batchBytes / shardSize, Integer.MAX_VALUE));
+        long budget = conf.getLong(READ_AHEAD_BYTES_KEY, DEFAULT_READ_AHEAD_BYTES);
+        // the batch being consumed counts in the budget too
+        long maxAhead = budget / ((long) batchSize * shardSize) - 1;
+        long ahead = (Math.max(0, readAhead) + batchSize - 1) / batchSize;
+        this.batchesAhead = (int) Math.max(0, Math.min(ahead, maxAhead));
+        if (hbFile.getMd5Bytes() != null && conf.getBoolean(READ_VERIFY_MD5_KEY, DEFAULT_READ_VERIFY_MD5)) {
+            this.md5 = HBaseFileHelper.md5Digest();
+        }
     }
 
     @Override
     public int read() throws IOException {
-        if (cache == null) {
-            cache = readCacheFromHBase();
-            cursor = 0;
-            // 读不到分片了，返回-1,上层while循环判断文件读取完毕-1
-            if (cache == null || cache.length == 0) return -1;
+        // 读不到分片了，返回-1,上层while循环判断文件读取完毕-1
+        if (!fill()) return -1;
+        pos++;
+        //byte转换int时与0xff进行与运算是为了让int的高24位清0
+        return cache[cursor++] & 0xff;
+    }
+
+    /**
+     * read from the current shard. it only fetches the next shard when the
+     * current one is used up, so it never blocks with bytes on hand.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkBounds(b, off, len);
+        if (len == 0) {
+            return 0;
         }
-        byte b = -1;
-        if (cursor < cache.length) {
-            b = cache[cursor++];
+        if (!fill()) return -1;
+        int n = Math.min(len, limit - cursor);
+        System.arraycopy(cache, cursor, b, off, n);
+        cursor += n;
+        pos += n;
+        return n;
+    }
+
+    /**
+     * the bytes left in the current shard.
+     */
+    @Override
+    public int available() throws IOException {
+        return cache == null ? 0 : limit - cursor;
+    }
+
+    /**
+     * skip in the current shard, or seek without fetching the shards
+     * between.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || closed) {
+            return 0;
         }
-        if (cursor >= cache.length) {
-            cache = null;
+        long skipped = Math.min(n, hbFile.getSize() - pos);
+        if (skipped <= 0) {
+            return 0;
+        }
+        seek(pos + skipped);
+        return skipped;
+    }
+
+    /**
+     * write all the rest bytes to the OutputStream, a whole shard at a time.
+     *
+     * @param out
+     * @return the number of bytes transferred.
+     * @throws IOException
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        long transferred = 0;
+        while (fill()) {
+            int n = limit - cursor;
+            out.write(cache, cursor, n);
+            cursor += n;
+            pos += n;
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * write all the rest bytes to the channel, the shards are wrapped but not
+     * copied.
+     *
+     * @param channel
+     * @return the number of bytes transferred.
+     * @throws IOException
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        long transferred = 0;
+        while (fill()) {
+            ByteBuffer buf = ByteBuffer.wrap(cache, cursor, limit - cursor);
+            while (buf.hasRemaining()) {
+                transferred += channel.write(buf);
+            }
+            pos += limit - cursor;
+            cursor = limit;
+        }
+        return transferred;
+    }
+
+    /**
+     * move to the position. The shards in hand are kept if the position is
+     * in them, or they are dropped and the reading starts again from the
+     * shard of the position.
+     */
+    @Override
+    public void seek(long target) throws IOException {
+        if (closed) {
+            throw new IOException("The stream has been closed.");
+        } else if (target < 0) {
+            throw new EOFException("Cannot seek to a negative offset: " + target);
+        } else if (target > hbFile.getSize()) {
+            throw new EOFException("Cannot seek after the end of the file: " + target);
+        }
+        if (cache != null && target - pos >= start - cursor && target - pos < limit - cursor) {
+            cursor += (int) (target - pos);
+            pos = target;
+            return;
+        }
+        dropShards();
+        if (target != pos) {
+            md5 = null;
+        }
+        shard = hbFile.shardAt(target);
+        seekInShard = (int) (target - hbFile.shardOffset(shard));
+        pos = target;
+        eof = target == hbFile.getSize();
+    }
+
+    @Override
+    public long getPos() throws IOException {
+        return pos;
+    }
+
+    /**
+     * there is only one source of the file.
+     */
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+    }
+
+    /**
+     * read at the position without moving the stream. The shards touched are
+     * fetched in one Get, they are not cached.
+     */
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        checkBounds(buffer, offset, length);
+        if (position < 0) {
+            throw new EOFException("Cannot read at a negative offset: " + position);
+        }
+        if (position >= hbFile.getSize()) {
+            return -1;
+        }
+        length = (int) Math.min(length, hbFile.getSize() - position);
+        if (length == 0) {
+            return 0;
+        }
+        int from = hbFile.shardAt(position);
+        int to = hbFile.shardAt(position + length - 1);
+        to = Math.min(to, from + batchSize - 1);
+        ByteBuffer[] shards = HBaseFileHelper.readShards(hbFile, from, to);
+        int read = 0;
+        int inShard = (int) (position - hbFile.shardOffset(from));
+        for (int i = 0; shards != null && i < shards.length && read < length; i++) {
+            if (shards[i] == null || inShard >= shards[i].remaining()) {
+                break;
+            }
+            int n = Math.min(length - read, shards[i].remaining() - inShard);
+            System.arraycopy(shards[i].array(), shards[i].arrayOffset() + shards[i].position() + inShard,
+                    buffer, offset + read, n);
+            read += n;
+            inShard = 0;
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = read(position + read, buffer, offset + read, length - read);
+            if (n < 0) {
+                throw new EOFException("Reached the end of the file before reading fully.");
+            }
+            read += n;
+        }
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer) throws IOException {
+        readFully(position, buffer, 0, buffer.length);
+    }
+
+    /**
+     * the shards not started yet are cancelled, the running ones are left to
+     * finish, interrupting them may break the shared hbase connection.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        eof = true;
+        dropShards();
+    }
+
+    private void dropShards() {
+        cache = null;
+        batch = null;
+        Future<ByteBuffer[]> prefetch;
+        while ((prefetch = prefetches.poll()) != null) {
+            prefetch.cancel(false);
         }
-        
-        //byte转换int时与0xff进行与运算是为了让int的高24位清0
-        return b & 0xff;
     }
-    
-    
-    private byte[] readCacheFromHBase() throws IOException {
-        return HBaseFileHelper.readShard(hbFile, shard++);
+
+    private static void checkBounds(byte[] b, int off, int len) {
+        if (b == null) {
+            throw new NullPointerException();
+        } else if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
     }
-    
+
+    /**
+     * make sure there are bytes in the cache.
+     *
+     * @return false if the end of the file is reached.
+     */
+    private boolean fill() throws IOException {
+        if (cache != null && cursor < limit) {
+            return true;
+        }
+        cache = null;
+        if (eof) {
+            return false;
+        }
+        ByteBuffer next = readCacheFromHBase();
+        int skip = seekInShard;
+        seekInShard = 0;
+        if (next == null || skip >= next.remaining()) {
+            eof = true;
+            verifyMd5();
+            return false;
+        }
+        cache = next.array();
+        start = next.arrayOffset() + next.position();
+        limit = start + next.remaining();
+        cursor = start + skip;
+        if (md5 != null) {
+            md5.update(cache, start, limit - start);
+        }
+        return true;
+    }
+
+    /**
+     * all the shards have been fetched in order, check the md5 of the file.
+     * A missing shard is found here too.
+     */
+    private void verifyMd5() throws IOException {
+        if (md5 != null) {
+            byte[] digest = md5.digest();
+            md5 = null;
+            if (!MessageDigest.isEqual(digest, hbFile.getMd5Bytes())) {
+                throw new ChecksumException("The md5 of " + hbFile.getIdentifier()
+                        + " does not match, " + pos + " bytes read.", pos);
+            }
+        }
+    }
+
+    private ByteBuffer readCacheFromHBase() throws IOException {
+        while (batch == null || batchCursor >= batch.length) {
+            batch = readBatchFromHBase();
+            batchCursor = 0;
+            if (batch == null) {
+                return null;
+            }
+        }
+        return batch[batchCursor++];
+    }
+
+    private ByteBuffer[] readBatchFromHBase() throws IOException {
+        if (batchesAhead <= 0 || hbFile.getShards() <= batchSize) {
+            if (shard > hbFile.getShards()) {
+                return null;
+            }
+            return new ShardFetcher(shard, nextBatchEnd()).call();
+        }
+        while (prefetches.size() <= batchesAhead && shard <= hbFile.getShards()) {
+            prefetches.add(HBaseFileExecutors.readAhead().submit(new ShardFetcher(shard, nextBatchEnd())));
+        }
+        Future<ByteBuffer[]> prefetch = prefetches.poll();
+        return prefetch == null ? null : HBaseFileExecutors.get(prefetch);
+    }
+
+    /**
+     * take the next batch of shards.
+     *
+     * @return the last shard of the batch.
+     */
+    private int nextBatchEnd() {
+        int to = (int) Math.min((long) shard + batchSize - 1, hbFile.getShards());
+        shard = to + 1;
+        return to;
+    }
+
+    private class ShardFetcher implements Callable<ByteBuffer[]> {
+
+        private final int from;
+        private final int to;
+
+        ShardFetcher(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public ByteBuffer[] call() throws IOException {
+            return HBaseFileHelper.readShards(hbFile, from, to);
+        }
+    }
+
 }
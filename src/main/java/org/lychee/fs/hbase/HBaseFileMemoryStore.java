@@ -0,0 +1,363 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import static org.lychee.fs.hbase.HBaseFileConst.*;
+
+/**
+ *
+ * A HBaseFileStore keeps everything in memory. <br/>
+ *
+ * It stores the same rows and columns as the hbase table, so the file system
+ * can be tested and benchmarked without a hbase cluster. All the data will
+ * be lost when the jvm exits.
+ *
+ * @author chunhui
+ * @see HBaseFileStore
+ */
+class HBaseFileMemoryStore implements HBaseFileStore {
+
+    private final ConcurrentSkipListMap<byte[], Row> rows
+            = new ConcurrentSkipListMap<byte[], Row>(Bytes.BYTES_COMPARATOR);
+
+    /**
+     * the chunk table.
+     */
+    private final ConcurrentSkipListMap<byte[], Row> chunks
+            = new ConcurrentSkipListMap<byte[], Row>(Bytes.BYTES_COMPARATOR);
+
+    @Override
+    public void saveOrUpdateMeta(HBaseFile hbFile) throws IOException {
+        put(HBaseFileHelper.metaPut(hbFile));
+    }
+
+    @Override
+    public boolean create(HBaseFile hbFile) throws IOException {
+        Put put = HBaseFileHelper.metaPut(hbFile);
+        return row(put.getRow()).checkAndPut(CF_META, M_STATUS, null, put);
+    }
+
+    @Override
+    public boolean commit(HBaseFile hbFile) throws IOException {
+        Row row = rows.get(HBaseFileHelper.rowKey(hbFile));
+        return row != null && row.checkAndPut(CF_META, M_STATUS, new byte[]{TRANSIT},
+                HBaseFileHelper.metaPut(hbFile));
+    }
+
+    @Override
+    public Result readMeta(HBaseFile hbFile) throws IOException {
+        Row row = rows.get(HBaseFileHelper.rowKey(hbFile));
+        return row == null ? null : row.result(CF_META);
+    }
+
+    @Override
+    public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+        put(HBaseFileHelper.shardPut(hbFile, shard, bytes, offset, length));
+    }
+
+    @Override
+    public byte[] readShard(HBaseFile hbFile, int shard) throws IOException {
+        Row row = rows.get(HBaseFileHelper.shardRowKey(hbFile, shard));
+        return row == null ? null : row.get(CF_SHARDS, Bytes.toBytes(shard));
+    }
+
+    @Override
+    public byte[][] readShards(HBaseFile hbFile, int from, int to) throws IOException {
+        byte[][] shards = new byte[to - from + 1][];
+        for (int shard = from; shard <= to; shard++) {
+            shards[shard - from] = readShard(hbFile, shard);
+        }
+        return shards;
+    }
+
+    @Override
+    public boolean[] hasShards(HBaseFile hbFile, int from, int to) throws IOException {
+        boolean[] stored = new boolean[to - from + 1];
+        for (int shard = from; shard <= to; shard++) {
+            stored[shard - from] = readShard(hbFile, shard) != null;
+        }
+        return stored;
+    }
+
+    @Override
+    public void delete(HBaseFile hbFile) throws IOException {
+        byte[] rowKey = HBaseFileHelper.rowKey(hbFile);
+        rows.remove(rowKey);
+        if (hbFile.getBlockShards() > 0) {
+            rows.subMap(HBaseFileHelper.subRowStart(rowKey), HBaseFileHelper.subRowStop(rowKey)).clear();
+        }
+    }
+
+    /**
+     * the number of rows in the table, the sub-rows included.
+     */
+    int rowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public boolean hasChunk(byte[] hash) throws IOException {
+        Row row = chunks.get(hash);
+        return row != null && row.get(CF_CHUNK, C_DATA) != null;
+    }
+
+    @Override
+    public void putChunk(byte[] hash, byte[] bytes, int offset, int length) throws IOException {
+        Put put = new Put(hash);
+        put.add(CF_CHUNK, C_DATA, Arrays.copyOfRange(bytes, offset, offset + length));
+        row(chunks, hash).put(put);
+    }
+
+    @Override
+    public long addChunkRefs(byte[] hash, long delta) throws IOException {
+        return row(chunks, hash).increment(CF_CHUNK, C_REFS, delta);
+    }
+
+    @Override
+    public boolean deleteChunk(byte[] hash) throws IOException {
+        Row row = chunks.get(hash);
+        if (row == null) {
+            return false;
+        }
+        //与表的checkAndDelete一致，引用数正好是0才删除
+        synchronized (row) {
+            byte[] refs = row.get(CF_CHUNK, C_REFS);
+            if (refs == null || Bytes.toLong(refs) != 0) {
+                return false;
+            }
+            return chunks.remove(hash, row);
+        }
+    }
+
+    @Override
+    public byte[][] readChunks(byte[][] hashes) throws IOException {
+        byte[][] bytes = new byte[hashes.length][];
+        for (int i = 0; i < hashes.length; i++) {
+            Row row = chunks.get(hashes[i]);
+            bytes[i] = row == null ? null : row.get(CF_CHUNK, C_DATA);
+        }
+        return bytes;
+    }
+
+    /**
+     * the number of chunks in the chunk table.
+     */
+    int chunkCount() {
+        return chunks.size();
+    }
+
+    @Override
+    public ResultScanner scan() throws IOException {
+        int buckets = HBaseFileHelper.saltBuckets();
+        if (buckets == 0) {
+            return scan(rows);
+        }
+        //每个桶一个scanner，与hbase表的扫描一致
+        byte[][] starts = HBaseFileHelper.saltBucketStarts();
+        List<ResultScanner> scanners = new ArrayList<ResultScanner>(buckets);
+        for (int b = 0; b < buckets; b++) {
+            scanners.add(scan(b + 1 < buckets
+                    ? rows.subMap(starts[b], starts[b + 1]) : rows.tailMap(starts[b])));
+        }
+        return new HBaseFileMergeScanner(scanners, HBaseFileHelper.saltLength());
+    }
+
+    @Override
+    public ResultScanner scan(byte[] start, byte[] stop, byte[]... columns) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        for (Row row : (stop.length == 0 ? rows.tailMap(start) : rows.subMap(start, stop)).values()) {
+            Result result = row.result(CF_META, columns);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return new MemoryScanner(results.iterator());
+    }
+
+    /**
+     * one region for each salt bucket.
+     */
+    @Override
+    public List<byte[]> regionStarts() throws IOException {
+        List<byte[]> starts = new ArrayList<byte[]>(Arrays.asList(HBaseFileHelper.saltBucketStarts()));
+        if (starts.isEmpty()) {
+            starts.add(new byte[0]);
+        } else {
+            starts.set(0, new byte[0]);
+        }
+        return starts;
+    }
+
+    private static ResultScanner scan(Map<byte[], Row> table) {
+        List<Result> results = new ArrayList<Result>();
+        for (Row row : table.values()) {
+            Result result = row.result(CF_META);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return new MemoryScanner(results.iterator());
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    private void put(Put put) {
+        row(put.getRow()).put(put);
+    }
+
+    private Row row(byte[] rowKey) {
+        return row(rows, rowKey);
+    }
+
+    private static Row row(ConcurrentSkipListMap<byte[], Row> table, byte[] rowKey) {
+        Row row = table.get(rowKey);
+        if (row == null) {
+            Row newRow = new Row(rowKey);
+            row = table.putIfAbsent(rowKey, newRow);
+            if (row == null) {
+                row = newRow;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * One row of the table, family -> qualifier -> value.
+     */
+    private static class Row {
+
+        private final byte[] key;
+        private final NavigableMap<byte[], NavigableMap<byte[], byte[]>> families
+                = new TreeMap<byte[], NavigableMap<byte[], byte[]>>(Bytes.BYTES_COMPARATOR);
+
+        Row(byte[] key) {
+            this.key = key;
+        }
+
+        synchronized void put(Put put) {
+            for (Map.Entry<byte[], List<KeyValue>> e : put.getFamilyMap().entrySet()) {
+                NavigableMap<byte[], byte[]> columns = families.get(e.getKey());
+                if (columns == null) {
+                    columns = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+                    families.put(e.getKey(), columns);
+                }
+                for (KeyValue kv : e.getValue()) {
+                    columns.put(kv.getQualifier(), kv.getValue());
+                }
+            }
+        }
+
+        synchronized boolean checkAndPut(byte[] family, byte[] qualifier, byte[] expected, Put put) {
+            if (!Bytes.equals(get(family, qualifier), expected)) {
+                return false;
+            }
+            put(put);
+            return true;
+        }
+
+        synchronized long increment(byte[] family, byte[] qualifier, long delta) {
+            byte[] value = get(family, qualifier);
+            long result = (value == null ? 0 : Bytes.toLong(value)) + delta;
+            Put put = new Put(key);
+            put.add(family, qualifier, Bytes.toBytes(result));
+            put(put);
+            return result;
+        }
+
+        synchronized byte[] get(byte[] family, byte[] qualifier) {
+            NavigableMap<byte[], byte[]> columns = families.get(family);
+            return columns == null ? null : columns.get(qualifier);
+        }
+
+        /**
+         * the columns of the family, all of them if none is given.
+         */
+        synchronized Result result(byte[] family, byte[]... qualifiers) {
+            NavigableMap<byte[], byte[]> columns = families.get(family);
+            if (columns == null || columns.isEmpty()) {
+                return null;
+            }
+            List<KeyValue> kvs = new ArrayList<KeyValue>(columns.size());
+            for (Map.Entry<byte[], byte[]> e : columns.entrySet()) {
+                if (qualifiers.length == 0 || contains(qualifiers, e.getKey())) {
+                    kvs.add(new KeyValue(key, family, e.getKey(), e.getValue()));
+                }
+            }
+            return kvs.isEmpty() ? null : new Result(kvs);
+        }
+
+        private static boolean contains(byte[][] qualifiers, byte[] qualifier) {
+            for (byte[] q : qualifiers) {
+                if (Bytes.equals(q, qualifier)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class MemoryScanner implements ResultScanner {
+
+        private final Iterator<Result> it;
+
+        MemoryScanner(Iterator<Result> it) {
+            this.it = it;
+        }
+
+        @Override
+        public Result next() throws IOException {
+            return it.hasNext() ? it.next() : null;
+        }
+
+        @Override
+        public Result[] next(int nbRows) throws IOException {
+            Result[] rs = new Result[nbRows];
+            int i = 0;
+            while (i < nbRows && it.hasNext()) {
+                rs[i++] = it.next();
+            }
+            return Arrays.copyOf(rs, i);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return it;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ * Merge the scanners of the salt buckets into one. <br/>
+ *
+ * Every bucket is scanned by its own scanner, their first rows are fetched in
+ * parallel, then the rows come out in the order of the identifiers, the salt
+ * prefix is not compared.
+ *
+ * @author chunhui
+ * @see HBaseFileHelper#rowKey(String)
+ */
+class HBaseFileMergeScanner implements ResultScanner {
+
+    private final List<ResultScanner> scanners;
+
+    private final PriorityQueue<Head> heads;
+
+    /**
+     *
+     * @param scanners one scanner for each bucket.
+     * @param prefix the bytes of the salt before the identifier.
+     * @throws IOException
+     */
+    HBaseFileMergeScanner(List<ResultScanner> scanners, final int prefix) throws IOException {
+        this.scanners = scanners;
+        this.heads = new PriorityQueue<Head>(Math.max(1, scanners.size()), new Comparator<Head>() {
+            @Override
+            public int compare(Head a, Head b) {
+                byte[] x = a.result.getRow();
+                byte[] y = b.result.getRow();
+                return Bytes.compareTo(x, prefix, x.length - prefix, y, prefix, y.length - prefix);
+            }
+        });
+        //并行获取每个桶的第一行
+        List<Future<Result>> firsts = new ArrayList<Future<Result>>(scanners.size());
+        for (final ResultScanner scanner : scanners) {
+            firsts.add(HBaseFileExecutors.readAhead().submit(new Callable<Result>() {
+                @Override
+                public Result call() throws IOException {
+                    return scanner.next();
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < scanners.size(); i++) {
+                Result first = HBaseFileExecutors.get(firsts.get(i));
+                if (first != null) {
+                    heads.add(new Head(first, scanners.get(i)));
+                }
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public Result next() throws IOException {
+        Head head = heads.poll();
+        if (head == null) {
+            return null;
+        }
+        Result next = head.scanner.next();
+        if (next != null) {
+            heads.add(new Head(next, head.scanner));
+        }
+        return head.result;
+    }
+
+    @Override
+    public Result[] next(int nbRows) throws IOException {
+        Result[] rs = new Result[nbRows];
+        int i = 0;
+        Result r;
+        while (i < nbRows && (r = next()) != null) {
+            rs[i++] = r;
+        }
+        return Arrays.copyOf(rs, i);
+    }
+
+    @Override
+    public void close() {
+        for (ResultScanner scanner : scanners) {
+            scanner.close();
+        }
+        heads.clear();
+    }
+
+    @Override
+    public Iterator<Result> iterator() {
+        return new Iterator<Result>() {
+
+            private Result next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = HBaseFileMergeScanner.this.next();
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Result next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Result r = next;
+                next = null;
+                return r;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static class Head {
+
+        private final Result result;
+        private final ResultScanner scanner;
+
+        Head(Result result, ResultScanner scanner) {
+            this.result = result;
+            this.scanner = scanner;
+        }
+    }
+
+}
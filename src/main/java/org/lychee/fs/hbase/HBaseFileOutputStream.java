@@ -16,83 +16,434 @@
 
 package org.lychee.fs.hbase;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import static org.lychee.fs.hbase.HBaseFileConst.*;
 
 /**
  *
  * The OutputStream impl of the Hbase file. <br/>
- * 
+ *
  * You can use it like common OutputStream, just remeber to **close** it.
- * 
+ * The bytes are copied into a pooled shard buffer, which has room for the
+ * shard header, and the full buffer is put. <br/>
+ *
+ * In async mode ("hbase.fs.write.async"), the full shards are put on a
+ * shared thread pool, and the writer only blocks when
+ * "hbase.fs.write.buffer.bytes" are waiting to be put. close() waits for all
+ * of them before the file becomes INTEGRITY. <br/>
+ *
+ * The first shard is put with the meta in TRANSIT status, the other shards
+ * do not touch the meta. Every "hbase.fs.block.shards" shards go to a
+ * sub-row of their own, so a large file is not one huge row. At close, the
+ * size, shards and md5 are committed in one checkAndPut on the status.<br/>
+ *
+ * A file not larger than "hbase.fs.inline.threshold" is put with its meta in
+ * one Put, it has no shards in CF_SHARDS. <br/>
+ *
+ * With "hbase.fs.chunking", a new file is cut into content defined chunks.
+ * Only the chunks not in the chunk table are put, and the meta with the chunk
+ * list is put at close. The chunks are put synchronously. <br/>
+ *
+ * Every shard is put with a crc32c in its header. With "hbase.fs.codec",
+ * every shard is compressed on its own in the upload threads, the stream is
+ * async whatever "hbase.fs.write.async" says. Only the first shard, put with
+ * the meta, is compressed in the writer. A shard which does not shrink is put
+ * raw.
+ *
  * @author chunhui
  * @see HBaseFile
  * @see HBaseFileInputStream
  */
 public class HBaseFileOutputStream extends OutputStream {
 
+    private static final int ROOM = HBaseFileBufferPool.SHARD_ROOM;
+
     private final HBaseFile hbFile;
-    
-    private final static int CACHE_SIZE = 1024 * 1024;
-    
+
+    private final int shardSize;
+    private final int inlineThreshold;
+
+    /**
+     * the shard is copied when it's put, so one cache is enough. In async
+     * mode, the cache goes with the upload and a free one is taken. The
+     * buffers come from HBaseFileBufferPool and go back at close, the bytes
+     * start after the room for the shard header.
+     */
     private byte[] cache;
-    
-    private byte[] needFlushShard;
-    
+
     private int cursor = 0;
     private long size = 0;
-    
+    private boolean closed;
+
+    private MessageDigest md5 = HBaseFileHelper.md5Digest();
+
+    /**
+     * chunking mode only, the chunker and the chunk list.
+     */
+    private final HBaseFileChunker chunker;
+    private final ByteArrayOutputStream chunks;
+    private final MessageDigest sha1;
+
+    /**
+     * async mode only, the shards in putting and the buffers for them.
+     */
+    private final Deque<Future<Void>> uploads;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final int maxBuffers;
+    private int buffers;
+
     public HBaseFileOutputStream(HBaseFile hbFile) {
+        this(hbFile, HBaseFileHelper.conf().getBoolean(WRITE_ASYNC_KEY, DEFAULT_WRITE_ASYNC));
+    }
+
+    /**
+     *
+     * @param hbFile
+     * @param async put the shards in background or not.
+     */
+    public HBaseFileOutputStream(HBaseFile hbFile, boolean async) {
+        this(hbFile, HBaseFileHelper.defaultShardSize(), async);
+    }
+
+    /**
+     *
+     * @param hbFile
+     * @param shardSize the shard size of a new file, it's ignored if the file
+     * exists. Small shards for small files, large ones for big media.
+     * @param async put the shards in background or not, always with a codec
+     * other than "none".
+     */
+    public HBaseFileOutputStream(HBaseFile hbFile, int shardSize, boolean async) {
         this.hbFile = hbFile;
+        Configuration conf = HBaseFileHelper.conf();
+        if (hbFile.isNew()) {
+            HBaseFileHelper.setUpNewFile(hbFile, shardSize);
+        }
+        if (hbFile.isNew() && conf.getBoolean(CHUNKING_KEY, DEFAULT_CHUNKING)) {
+            int avgSize = conf.getInt(CHUNK_AVG_SIZE_KEY, DEFAULT_CHUNK_AVG_SIZE);
+            this.chunker = new HBaseFileChunker(
+                    conf.getInt(CHUNK_MIN_SIZE_KEY, DEFAULT_CHUNK_MIN_SIZE), avgSize,
+                    HBaseFileHelper.checkShardSize(conf.getInt(CHUNK_MAX_SIZE_KEY, DEFAULT_CHUNK_MAX_SIZE)));
+            this.chunks = new ByteArrayOutputStream();
+            this.sha1 = HBaseFileHelper.sha1Digest();
+            //块的大小不固定，读的时候按平均大小分批
+            hbFile.setShardSize(avgSize);
+            async = false;
+        } else {
+            this.chunker = null;
+            this.chunks = null;
+            this.sha1 = null;
+            //压缩的分片在上传线程里压缩，不占用写的线程
+            if (hbFile.getCodec() != null && HBaseFileCodec.id(hbFile.getCodec()) != 0) {
+                async = true;
+            }
+        }
+        this.shardSize = chunker == null ? hbFile.getShardSize() : chunker.maxSize();
+        this.inlineThreshold = conf.getInt(INLINE_THRESHOLD_KEY, DEFAULT_INLINE_THRESHOLD);
+        if (async) {
+            long bufferBytes = conf.getLong(WRITE_BUFFER_BYTES_KEY, DEFAULT_WRITE_BUFFER_BYTES);
+            // one more for the cache being filled
+            this.maxBuffers = (int) Math.max(1, bufferBytes / shardSize) + 1;
+            this.uploads = new ArrayDeque<Future<Void>>();
+            this.freeBuffers = new ArrayBlockingQueue<byte[]>(maxBuffers);
+        } else {
+            this.maxBuffers = 1;
+            this.uploads = null;
+            this.freeBuffers = null;
+        }
     }
-    
+
     @Override
     public void write(int b) throws IOException {
+        ensureOpen();
         if (cache == null) {
-            cache = new byte[CACHE_SIZE];
-            cursor = 0;
+            cache = takeBuffer();
         }
         //int转换为byte时，强转即可
-        cache[cursor++] = (byte)b;
+        cache[ROOM + cursor++] = (byte)b;
         size++;
-        //每写满一次缓存，入库一次
-        if (cursor == CACHE_SIZE) {
-            needFlushShard = cache;
-            cache = null;
+        //每写满一次缓存（或者到了块的边界），入库一次
+        if (chunker != null ? chunker.next((byte) b) : cursor == shardSize) {
             writeCacheToHBase();
         }
     }
-    
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        } else if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        if (chunker != null) {
+            writeChunked(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            //整片的数据也经过缓存，分片头部写在缓存前面预留的位置
+            if (cache == null) {
+                cache = takeBuffer();
+            }
+            int n = Math.min(len, shardSize - cursor);
+            System.arraycopy(b, off, cache, ROOM + cursor, n);
+            cursor += n;
+            size += n;
+            off += n;
+            len -= n;
+            if (cursor == shardSize) {
+                writeCacheToHBase();
+            }
+        }
+    }
+
+    /**
+     * Every shard except the last one must be full, so nothing is written
+     * until the cache is full or the stream is closed.
+     */
     @Override
     public void flush() throws IOException {
-        flush0();
+        ensureOpen();
     }
-    
+
+    /**
+     * continue a TRANSIT file whose first shards are in the hbase, they are
+     * not written again. Call it before writing.
+     *
+     * @param shards the shards kept, all full.
+     * @param digest the md5 of the bytes in them.
+     */
+    void resume(int shards, MessageDigest digest) {
+        if (!hbFile.isTransit() || shards < 1 || size > 0) {
+            throw new IllegalStateException("Only a TRANSIT file can be resumed before writing.");
+        }
+        hbFile.setShards(shards);
+        this.size = (long) shards * hbFile.getShardSize();
+        hbFile.setSize(size);
+        this.md5 = digest;
+    }
+
     @Override
     public void close() throws IOException {
-        flush0();
+        if (!closed) {
+            closed = true;
+            try {
+                flush0();
+            } finally {
+                releaseBuffers();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * copy the bytes into the cache up to each chunk boundary.
+     */
+    private void writeChunked(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (chunker.next(b[i])) {
+                appendToCache(b, start, i + 1 - start);
+                writeCacheToHBase();
+                start = i + 1;
+            }
+        }
+        appendToCache(b, start, off + len - start);
     }
-    
+
+    private void appendToCache(byte[] b, int off, int len) throws IOException {
+        if (cache == null) {
+            cache = takeBuffer();
+        }
+        System.arraycopy(b, off, cache, ROOM + cursor, len);
+        cursor += len;
+        size += len;
+    }
+
     private void writeCacheToHBase() throws IOException {
+        if (chunker != null) {
+            writeChunkToHBase(cache, ROOM, cursor);
+        } else {
+            writeShardToHBase(cursor);
+        }
+        cursor = 0;
+    }
+
+    /**
+     * the file stays NEW, nothing is in the file row until close.
+     */
+    private void writeChunkToHBase(byte[] chunk, int offset, int length) throws IOException {
+        md5.update(chunk, offset, length);
+        sha1.update(chunk, offset, length);
+        byte[] hash = sha1.digest();
+        HBaseFileHelper.addChunk(hbFile, hash, chunk, offset, length);
+        chunks.write(hash);
+        chunks.write(Bytes.toBytes(length));
+        hbFile.setSize(size);
+        hbFile.setShards(hbFile.getShards() + 1);
+    }
+
+    private void writeShardToHBase(int length) throws IOException {
+        md5.update(cache, ROOM, length);
         if (hbFile.isNew()) {
+            //第一个分片和TRANSIT状态的元数据在同一个Put里入库
             hbFile.setStatus(HBaseFileConst.TRANSIT);
-            HBaseFileHelper.saveOrUpdateMeta(hbFile);
         }
         hbFile.setSize(size);
         //分片计数
         hbFile.setShards(hbFile.getShards() + 1);
-        //将文件分片实体入库
-        HBaseFileHelper.addShard(hbFile, needFlushShard);
+        //第一个分片同步入库，保证其余分片入库前文件已是TRANSIT状态
+        if (uploads == null || hbFile.getShards() == 1) {
+            //将文件分片实体入库，缓存里的分片不用复制就能加上头部
+            HBaseFileHelper.addShardBuffer(hbFile, hbFile.getShards(), cache, length);
+            return;
+        }
+        //异步入库：缓存随分片一起交给上传线程
+        byte[] buffer = cache;
+        cache = null;
+        uploads.add(HBaseFileExecutors.upload().submit(
+                new ShardUploader(hbFile.getShards(), buffer, length)));
+        //尽早发现失败的分片
+        while (!uploads.isEmpty() && uploads.peek().isDone()) {
+            HBaseFileExecutors.get(uploads.poll());
+        }
     }
-    
+
     private void flush0() throws IOException {
-        needFlushShard = Arrays.copyOf(cache, cursor);
-        writeCacheToHBase();
-        if (!hbFile.integrity()) {
+        //小文件：内容和元数据在同一个Put里入库
+        if (hbFile.isNew() && hbFile.getShards() == 0 && cursor <= inlineThreshold) {
+            byte[] inline = cache == null ? new byte[0] : Arrays.copyOfRange(cache, ROOM, ROOM + cursor);
+            md5.update(inline);
+            hbFile.setInline(inline);
+            hbFile.setSize(size);
+            hbFile.setShards(1);
+            hbFile.setMd5(md5.digest());
+            hbFile.setStatus(HBaseFileConst.INTEGRITY);
+            HBaseFileHelper.saveOrUpdateMeta(hbFile);
+            return;
+        }
+        //文件大小正好是分片的整数倍时，最后没有剩余的缓存
+        if (cursor > 0) {
+            writeCacheToHBase();
+        }
+        waitForUploads();
+        if (hbFile.integrity()) {
+            return;
+        }
+        hbFile.setSize(size);
+        hbFile.setMd5(md5.digest());
+        if (hbFile.isNew()) {
+            //空文件，没有分片；或者分块的文件，写入块列表
+            if (chunker != null) {
+                hbFile.setChunks(chunks.toByteArray());
+            }
             hbFile.setStatus(HBaseFileConst.INTEGRITY);
             HBaseFileHelper.saveOrUpdateMeta(hbFile);
+        } else {
+            //所有分片入库后，一次提交元数据
+            HBaseFileHelper.commit(hbFile);
+        }
+    }
+
+    private void waitForUploads() throws IOException {
+        if (uploads == null) {
+            return;
+        }
+        try {
+            while (!uploads.isEmpty()) {
+                HBaseFileExecutors.get(uploads.peek());
+                uploads.poll();
+            }
+        } finally {
+            Future<Void> upload;
+            while ((upload = uploads.poll()) != null) {
+                upload.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * take a free shard buffer. In async mode it blocks when all the buffers
+     * are waiting to be put.
+     */
+    private byte[] takeBuffer() throws IOException {
+        if (freeBuffers != null) {
+            byte[] buffer = freeBuffers.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        if (buffers < maxBuffers) {
+            buffers++;
+            return HBaseFileBufferPool.takeShard(shardSize);
+        }
+        HBaseFileBufferPool.waited();
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the shards to be put.");
         }
     }
-    
+
+    /**
+     * give the buffers back to the pool. A buffer of a failed upload still
+     * running is not in freeBuffers, it's left to the gc.
+     */
+    private void releaseBuffers() {
+        if (cache != null) {
+            HBaseFileBufferPool.give(cache);
+            cache = null;
+        }
+        if (freeBuffers != null) {
+            byte[] buffer;
+            while ((buffer = freeBuffers.poll()) != null) {
+                HBaseFileBufferPool.give(buffer);
+            }
+        }
+    }
+
+    private class ShardUploader implements Callable<Void> {
+
+        private final int shard;
+        private final byte[] buffer;
+        private final int length;
+
+        ShardUploader(int shard, byte[] buffer, int length) {
+            this.shard = shard;
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try {
+                HBaseFileHelper.addShardBuffer(hbFile, shard, buffer, length);
+            } finally {
+                freeBuffers.offer(buffer);
+            }
+            return null;
+        }
+    }
+
 }
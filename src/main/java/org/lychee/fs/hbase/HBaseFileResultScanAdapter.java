@@ -19,7 +19,6 @@ import java.util.ArrayList;
 import java.util.List;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
-import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,26 +43,30 @@ public class HBaseFileResultScanAdapter {
     
     /**
      * scan the next *size* files. <br/>
+     * The staging files of the uploads are skipped.
      * 
      * @param size
      * @return 
      */
     public List<HBaseFile> next(int size) {
-        List<HBaseFile> hbFiles = null;
+        List<HBaseFile> hbFiles = new ArrayList<HBaseFile>();
         if (scanner == null) 
-            return new ArrayList<HBaseFile>();
+            return hbFiles;
         try {
             Result[] rs;
-            if ((rs = scanner.next(size)) != null) {
-                hbFiles = adapterTo(rs);
-            } else {
-                scanner.close();
+            while (hbFiles.size() < size) {
+                rs = scanner.next(size - hbFiles.size());
+                if (rs == null || rs.length == 0) {
+                    scanner.close();
+                    break;
+                }
+                adapterTo(rs, hbFiles);
             }
         } catch (IOException ex) {
             scanner.close();
             log.error("Fail to read next Hbase file.", ex);
         }
-        return hbFiles == null ? new ArrayList<HBaseFile>() : hbFiles;
+        return hbFiles;
     }
     
     /**
@@ -85,15 +88,14 @@ public class HBaseFileResultScanAdapter {
     }
 
     private HBaseFile adapterTo(Result result) {
-        HBaseFile hbFile = new HBaseFile(Bytes.toString(result.getRow()));
+        HBaseFile hbFile = new HBaseFile(HBaseFileHelper.identifier(result.getRow()));
         HBaseFileHelper.readMeta(result, hbFile);
         return hbFile;
     }
     
-    private List<HBaseFile> adapterTo(Result[] rs) {
-        List<HBaseFile> hbFiles = new ArrayList<HBaseFile>();
+    private void adapterTo(Result[] rs, List<HBaseFile> hbFiles) {
         for (Result r : rs)
-            hbFiles.add(adapterTo(r));
-        return hbFiles;
+            if (!HBaseFileHelper.isStaging(HBaseFileHelper.identifier(r.getRow())))
+                hbFiles.add(adapterTo(r));
     }
 }
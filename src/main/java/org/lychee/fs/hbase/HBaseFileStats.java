@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.lychee.fs.hbase.HBaseFileConst.*;
+
+/**
+ *
+ * The statistics of the files in the file system. <br/>
+ *
+ * The files are counted by status, and the INTEGRITY ones by size: bucket i
+ * of the histogram counts the files smaller than getHistogramBounds()[i],
+ * the last bucket the files larger than all of them. The staging files are
+ * not counted.
+ *
+ * @author chunhui
+ * @see HBaseFileSystem#stats()
+ */
+public class HBaseFileStats {
+
+    /**
+     * 4 KB, 64 KB, 1 MB, 16 MB, 256 MB and 4 GB.
+     */
+    private static final long[] HISTOGRAM_BOUNDS = {
+        4L << 10, 64L << 10, 1L << 20, 16L << 20, 256L << 20, 4L << 30};
+
+    private long files;
+    private long bytes;
+    private final long[] statuses = new long[5];
+    private final long[] histogram = new long[HISTOGRAM_BOUNDS.length + 1];
+
+    HBaseFileStats() {
+    }
+
+    void add(byte status, long size) {
+        statuses[index(status)]++;
+        if (status == INTEGRITY) {
+            files++;
+            bytes += size;
+            int bucket = 0;
+            while (bucket < HISTOGRAM_BOUNDS.length && size >= HISTOGRAM_BOUNDS[bucket]) {
+                bucket++;
+            }
+            histogram[bucket]++;
+        }
+    }
+
+    void add(HBaseFileStats other) {
+        files += other.files;
+        bytes += other.bytes;
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] += other.statuses[i];
+        }
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] += other.histogram[i];
+        }
+    }
+
+    /**
+     * the INTEGRITY files.
+     */
+    public long getFiles() {
+        return files;
+    }
+
+    /**
+     * the bytes of the INTEGRITY files.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * the files by status: NEW, CREATED, TRANSIT and INTEGRITY, and UNKNOWN
+     * for a status this version does not know.
+     */
+    public Map<String, Long> getStatuses() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        map.put("NEW", statuses[0]);
+        map.put("CREATED", statuses[1]);
+        map.put("TRANSIT", statuses[2]);
+        map.put("INTEGRITY", statuses[3]);
+        map.put("UNKNOWN", statuses[4]);
+        return map;
+    }
+
+    /**
+     * the INTEGRITY files by size, see getHistogramBounds().
+     */
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * the upper bounds of the histogram buckets, but the last one.
+     */
+    public static long[] getHistogramBounds() {
+        return HISTOGRAM_BOUNDS.clone();
+    }
+
+    private static int index(byte status) {
+        switch (status) {
+            case NEW:
+                return 0;
+            case CREATED:
+                return 1;
+            case TRANSIT:
+                return 2;
+            case INTEGRITY:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "files=" + files + ", bytes=" + bytes + ", statuses=" + getStatuses()
+                + ", histogram=" + Arrays.toString(histogram);
+    }
+
+}
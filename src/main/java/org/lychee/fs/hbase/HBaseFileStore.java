@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+
+/**
+ *
+ * The storage SPI under HBaseFileHelper. <br/>
+ *
+ * A store only moves cells in and out of the file system table, the row
+ * layout is built by HBaseFileHelper, so every implementation keeps the same
+ * semantics.
+ *
+ * @author chunhui
+ * @see HBaseFileTableStore
+ * @see HBaseFileMemoryStore
+ */
+interface HBaseFileStore extends Closeable {
+
+    /**
+     * write all the meta columns of the file.
+     *
+     * @param hbFile
+     * @throws IOException
+     */
+    void saveOrUpdateMeta(HBaseFile hbFile) throws IOException;
+
+    /**
+     * read the meta columns of the file.
+     *
+     * @param hbFile
+     * @return the meta columns, or null if the file does not exist.
+     * @throws IOException
+     */
+    Result readMeta(HBaseFile hbFile) throws IOException;
+
+    /**
+     * write all the meta columns of the file, only if the file does not
+     * exist in the store.
+     *
+     * @param hbFile
+     * @return false if the file exists.
+     * @throws IOException
+     */
+    boolean create(HBaseFile hbFile) throws IOException;
+
+    /**
+     * write all the meta columns of the file, only if the file in the store
+     * is still TRANSIT.
+     *
+     * @param hbFile
+     * @return false if the file has been changed or deleted by others.
+     * @throws IOException
+     */
+    boolean commit(HBaseFile hbFile) throws IOException;
+
+    /**
+     * write one shard. The first shard also carries all the meta columns. <br/>
+     * The bytes are copied before it returns, so the caller can reuse the
+     * array.
+     *
+     * @param hbFile
+     * @param shard the shard number, start from 1.
+     * @param bytes
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * read one shard of the file, from the row the file links to if any.
+     *
+     * @param hbFile
+     * @param shard the shard number, start from 1.
+     * @return the bytes of the shard, or null if it does not exist.
+     * @throws IOException
+     */
+    byte[] readShard(HBaseFile hbFile, int shard) throws IOException;
+
+    /**
+     * read the shards [from, to] of the file in one request.
+     *
+     * @param hbFile
+     * @param from the first shard number, start from 1.
+     * @param to the last shard number, inclusive.
+     * @return the bytes of the shards in order, a shard does not exist is
+     * null.
+     * @throws IOException
+     */
+    byte[][] readShards(HBaseFile hbFile, int from, int to) throws IOException;
+
+    /**
+     * whether the shards [from, to] of the file are stored, the bytes are
+     * not read.
+     *
+     * @param hbFile
+     * @param from the first shard number, start from 1.
+     * @param to the last shard number, inclusive.
+     * @return
+     * @throws IOException
+     */
+    boolean[] hasShards(HBaseFile hbFile, int from, int to) throws IOException;
+
+    /**
+     * delete the file with all its shards.
+     *
+     * @param hbFile
+     * @throws IOException
+     */
+    void delete(HBaseFile hbFile) throws IOException;
+
+    /**
+     * whether the chunk is in the chunk table.
+     *
+     * @param hash the sha1 of the chunk.
+     * @return
+     * @throws IOException
+     */
+    boolean hasChunk(byte[] hash) throws IOException;
+
+    /**
+     * write the bytes of a chunk, it does not touch the refs.
+     *
+     * @param hash the sha1 of the chunk.
+     * @param bytes
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void putChunk(byte[] hash, byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * add to the refs of the chunk atomically.
+     *
+     * @param hash the sha1 of the chunk.
+     * @param delta
+     * @return the refs after adding.
+     * @throws IOException
+     */
+    long addChunkRefs(byte[] hash, long delta) throws IOException;
+
+    /**
+     * delete the chunk, only if no file refers to it.
+     *
+     * @param hash the sha1 of the chunk.
+     * @return false if it's referred again.
+     * @throws IOException
+     */
+    boolean deleteChunk(byte[] hash) throws IOException;
+
+    /**
+     * read the chunks in one request.
+     *
+     * @param hashes the sha1 of the chunks.
+     * @return the bytes of the chunks in order, a chunk does not exist is
+     * null.
+     * @throws IOException
+     */
+    byte[][] readChunks(byte[][] hashes) throws IOException;
+
+    /**
+     * scan the meta columns of all the files.
+     *
+     * @return
+     * @throws IOException
+     */
+    ResultScanner scan() throws IOException;
+
+    /**
+     * scan some meta columns of the rows in [start, stop), in no order.
+     *
+     * @param start
+     * @param stop empty for the end of the table.
+     * @param columns the qualifiers in CF_META.
+     * @return
+     * @throws IOException
+     */
+    ResultScanner scan(byte[] start, byte[] stop, byte[]... columns) throws IOException;
+
+    /**
+     * the start keys of the regions in order, the first one is empty. They
+     * are scanned in parallel.
+     *
+     * @return
+     * @throws IOException
+     */
+    List<byte[]> regionStarts() throws IOException;
+
+    /**
+     * release the connections held by the store.
+     *
+     * @throws IOException
+     */
+    @Override
+    void close() throws IOException;
+
+}
@@ -17,10 +17,21 @@
 package org.lychee.fs.hbase;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.lychee.fs.hbase.HBaseFileConst.*;
+
 
 /**
  * 
@@ -31,12 +42,10 @@ import org.slf4j.LoggerFactory;
  * 
  * HBaseFileSystem provide some API to see the file system's status.
  * 
- * It's not working now.
- * 
  * @author chunhui
  * @see HBaseFile
  */
-class HBaseFileSystem {
+public class HBaseFileSystem {
     
     private final static Logger log = LoggerFactory.getLogger(HBaseFileSystem.class);
     private static HBaseFileSystem fs;
@@ -68,8 +77,81 @@ class HBaseFileSystem {
     	return hrs;
     }
     
+    /**
+     * 
+     * the number of the INTEGRITY files.
+     * 
+     * @return -1 if it fails to scan.
+     */
     public long count() {
-        return 0L;
+        try {
+            return stats().getFiles();
+        } catch (IOException ex) {
+            log.error("Fail to count.", ex);
+            return -1L;
+        }
     }
-}
 
+    /**
+     * 
+     * count the files and their bytes. Every region is scanned in parallel
+     * for the size, status and md5 columns only. A staging file linked to
+     * its md5 is not counted again, a broken or unlinked one is.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public HBaseFileStats stats() throws IOException {
+        final HBaseFileStore store = HBaseFileHelper.store();
+        List<byte[]> starts = store.regionStarts();
+        List<Future<HBaseFileStats>> regions = new ArrayList<Future<HBaseFileStats>>(starts.size());
+        try {
+            for (int i = 0; i < starts.size(); i++) {
+                final byte[] start = starts.get(i);
+                final byte[] stop = i + 1 < starts.size() ? starts.get(i + 1) : HConstants.EMPTY_END_ROW;
+                regions.add(HBaseFileExecutors.readAhead().submit(new Callable<HBaseFileStats>() {
+                    @Override
+                    public HBaseFileStats call() throws IOException {
+                        HBaseFileStats stats = new HBaseFileStats();
+                        ResultScanner rs = store.scan(start, stop, M_SIZE, M_STATUS, M_MD5);
+                        try {
+                            for (Result r : rs) {
+                                byte[] status = r.getValue(CF_META, M_STATUS);
+                                byte[] size = r.getValue(CF_META, M_SIZE);
+                                if (status != null && size != null && !(status[0] == INTEGRITY
+                                        && linked(HBaseFileHelper.identifier(r.getRow()), r.getValue(CF_META, M_MD5)))) {
+                                    stats.add(status[0], Bytes.toLong(size));
+                                }
+                            }
+                        } finally {
+                            rs.close();
+                        }
+                        return stats;
+                    }
+                }));
+            }
+            HBaseFileStats stats = new HBaseFileStats();
+            for (Future<HBaseFileStats> region : regions) {
+                stats.add(HBaseFileExecutors.get(region));
+            }
+            return stats;
+        } finally {
+            for (Future<HBaseFileStats> region : regions) {
+                region.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * whether the staging file is linked to by the file of its md5, whose
+     * bytes are counted.
+     */
+    private static boolean linked(String identifier, byte[] md5) throws IOException {
+        if (!HBaseFileHelper.isStaging(identifier) || md5 == null) {
+            return false;
+        }
+        HBaseFile hbFile = new HBaseFile(Hex.encodeHexString(md5));
+        HBaseFileHelper.readMeta(hbFile);
+        return hbFile.integrity() && identifier.equals(hbFile.getLink());
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.lychee.fs.hbase.HBaseFileConst.*;
+
+/**
+ *
+ * The HBaseFileStore on a real hbase cluster. <br/>
+ *
+ * It owns one HConnection. A HTableInterface is not thread safe, so every
+ * call borrows a table handle and gives it back when done. Up to
+ * "hbase.fs.table.pool.size" idle handles are kept for each table, they are
+ * light and share the connection. The chunks are in their own table.
+ *
+ * @author chunhui
+ * @see HBaseFileStore
+ */
+class HBaseFileTableStore implements HBaseFileStore {
+
+    private static final Logger log = LoggerFactory.getLogger(HBaseFileTableStore.class);
+
+    /**
+     * the rows fetched in one rpc by the statistics scans.
+     */
+    private static final int SCAN_CACHING = 1000;
+
+    private final HConnection connection;
+
+    private final TablePool files;
+
+    private final TablePool chunks;
+
+    HBaseFileTableStore(Configuration conf) throws IOException {
+        int poolSize = Math.max(1, conf.getInt(TABLE_POOL_SIZE_KEY, DEFAULT_TABLE_POOL_SIZE));
+        this.files = new TablePool(conf.get(TABLE_NAME_KEY, FILE_SYSTEM_TABLE_NAME), poolSize);
+        this.chunks = new TablePool(conf.get(CHUNK_TABLE_KEY, CHUNK_TABLE_NAME), poolSize);
+        this.connection = HConnectionManager.createConnection(conf);
+    }
+
+    @Override
+    public void saveOrUpdateMeta(HBaseFile hbFile) throws IOException {
+        put(HBaseFileHelper.metaPut(hbFile));
+    }
+
+    @Override
+    public boolean create(HBaseFile hbFile) throws IOException {
+        HTableInterface table = borrow();
+        try {
+            return table.checkAndPut(HBaseFileHelper.rowKey(hbFile), CF_META, M_STATUS,
+                    null, HBaseFileHelper.metaPut(hbFile));
+        } finally {
+            release(table);
+        }
+    }
+
+    @Override
+    public boolean commit(HBaseFile hbFile) throws IOException {
+        HTableInterface table = borrow();
+        try {
+            return table.checkAndPut(HBaseFileHelper.rowKey(hbFile), CF_META, M_STATUS,
+                    new byte[]{TRANSIT}, HBaseFileHelper.metaPut(hbFile));
+        } finally {
+            release(table);
+        }
+    }
+
+    @Override
+    public Result readMeta(HBaseFile hbFile) throws IOException {
+        Get get = new Get(HBaseFileHelper.rowKey(hbFile));
+        get.addFamily(CF_META);
+        return get(get);
+    }
+
+    @Override
+    public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+        put(HBaseFileHelper.shardPut(hbFile, shard, bytes, offset, length));
+    }
+
+    @Override
+    public byte[] readShard(HBaseFile hbFile, int shard) throws IOException {
+        Get get = new Get(HBaseFileHelper.shardRowKey(hbFile, shard));
+        get.addColumn(CF_SHARDS, Bytes.toBytes(shard));
+        Result result = get(get);
+        return result == null ? null : result.getValue(CF_SHARDS, Bytes.toBytes(shard));
+    }
+
+    @Override
+    public byte[][] readShards(HBaseFile hbFile, int from, int to) throws IOException {
+        Map<byte[], Result> results = getShards(hbFile, from, to, false);
+        byte[][] shards = new byte[to - from + 1][];
+        for (int shard = from; shard <= to; shard++) {
+            Result result = results.get(HBaseFileHelper.shardRowKey(hbFile, shard));
+            if (result != null) {
+                shards[shard - from] = result.getValue(CF_SHARDS, Bytes.toBytes(shard));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * the values are left on the region server by a KeyOnlyFilter.
+     */
+    @Override
+    public boolean[] hasShards(HBaseFile hbFile, int from, int to) throws IOException {
+        Map<byte[], Result> results = getShards(hbFile, from, to, true);
+        boolean[] stored = new boolean[to - from + 1];
+        for (int shard = from; shard <= to; shard++) {
+            Result result = results.get(HBaseFileHelper.shardRowKey(hbFile, shard));
+            stored[shard - from] = result != null && result.containsColumn(CF_SHARDS, Bytes.toBytes(shard));
+        }
+        return stored;
+    }
+
+    /**
+     * the sub-rows of the file are deleted too, they are found by a scan
+     * since a TRANSIT file does not know its shards.
+     */
+    @Override
+    public void delete(HBaseFile hbFile) throws IOException {
+        byte[] rowKey = HBaseFileHelper.rowKey(hbFile);
+        List<Delete> deletes = new ArrayList<Delete>();
+        deletes.add(new Delete(rowKey));
+        HTableInterface table = borrow();
+        try {
+            if (hbFile.getBlockShards() > 0) {
+                Scan scan = new Scan(HBaseFileHelper.subRowStart(rowKey), HBaseFileHelper.subRowStop(rowKey));
+                scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+                ResultScanner rs = table.getScanner(scan);
+                try {
+                    for (Result r : rs) {
+                        deletes.add(new Delete(r.getRow()));
+                    }
+                } finally {
+                    rs.close();
+                }
+            }
+            table.delete(deletes);
+        } finally {
+            release(table);
+        }
+    }
+
+    /*
+     * 扫描Hbase里指定列簇的所有记录
+     * 扫描器只依赖连接，表句柄可以立即归还
+     * 加盐时每个桶扫描一次，按identifier合并
+     */
+    @Override
+    public ResultScanner scan() throws IOException {
+        int buckets = HBaseFileHelper.saltBuckets();
+        HTableInterface table = borrow();
+        try {
+            if (buckets == 0) {
+                return table.getScanner(CF_META);
+            }
+            byte[][] starts = HBaseFileHelper.saltBucketStarts();
+            List<ResultScanner> scanners = new ArrayList<ResultScanner>(buckets);
+            try {
+                for (int b = 0; b < buckets; b++) {
+                    Scan scan = new Scan(starts[b], b + 1 < buckets ? starts[b + 1] : HConstants.EMPTY_END_ROW);
+                    scan.addFamily(CF_META);
+                    scanners.add(table.getScanner(scan));
+                }
+            } catch (IOException ex) {
+                for (ResultScanner scanner : scanners) {
+                    scanner.close();
+                }
+                throw ex;
+            }
+            return new HBaseFileMergeScanner(scanners, HBaseFileHelper.saltLength());
+        } finally {
+            release(table);
+        }
+    }
+
+    /*
+     * 只取需要的列，不缓存数据块，避免统计扫描冲掉热数据
+     */
+    @Override
+    public ResultScanner scan(byte[] start, byte[] stop, byte[]... columns) throws IOException {
+        Scan scan = new Scan(start, stop);
+        for (byte[] column : columns) {
+            scan.addColumn(CF_META, column);
+        }
+        scan.setCaching(SCAN_CACHING);
+        scan.setCacheBlocks(false);
+        HTableInterface table = borrow();
+        try {
+            return table.getScanner(scan);
+        } finally {
+            release(table);
+        }
+    }
+
+    @Override
+    public List<byte[]> regionStarts() throws IOException {
+        List<byte[]> starts = new ArrayList<byte[]>();
+        for (HRegionLocation location : connection.locateRegions(Bytes.toBytes(files.tableName))) {
+            starts.add(location.getRegionInfo().getStartKey());
+        }
+        Collections.sort(starts, Bytes.BYTES_COMPARATOR);
+        if (starts.isEmpty() || starts.get(0).length > 0) {
+            starts.add(0, HConstants.EMPTY_START_ROW);
+        }
+        return starts;
+    }
+
+    @Override
+    public boolean hasChunk(byte[] hash) throws IOException {
+        Get get = new Get(hash);
+        get.addColumn(CF_CHUNK, C_DATA);
+        HTableInterface table = chunks.borrow();
+        try {
+            return table.exists(get);
+        } finally {
+            chunks.release(table);
+        }
+    }
+
+    @Override
+    public void putChunk(byte[] hash, byte[] bytes, int offset, int length) throws IOException {
+        Put put = new Put(hash);
+        put.add(new KeyValue(hash, 0, hash.length, CF_CHUNK, 0, CF_CHUNK.length,
+                C_DATA, 0, C_DATA.length, put.getTimeStamp(), KeyValue.Type.Put,
+                bytes, offset, length));
+        HTableInterface table = chunks.borrow();
+        try {
+            table.put(put);
+        } finally {
+            chunks.release(table);
+        }
+    }
+
+    @Override
+    public long addChunkRefs(byte[] hash, long delta) throws IOException {
+        HTableInterface table = chunks.borrow();
+        try {
+            return table.incrementColumnValue(hash, CF_CHUNK, C_REFS, delta);
+        } finally {
+            chunks.release(table);
+        }
+    }
+
+    @Override
+    public boolean deleteChunk(byte[] hash) throws IOException {
+        HTableInterface table = chunks.borrow();
+        try {
+            return table.checkAndDelete(hash, CF_CHUNK, C_REFS, Bytes.toBytes(0L), new Delete(hash));
+        } finally {
+            chunks.release(table);
+        }
+    }
+
+    @Override
+    public byte[][] readChunks(byte[][] hashes) throws IOException {
+        List<Get> gets = new ArrayList<Get>(hashes.length);
+        for (byte[] hash : hashes) {
+            gets.add(new Get(hash).addColumn(CF_CHUNK, C_DATA));
+        }
+        Result[] results;
+        HTableInterface table = chunks.borrow();
+        try {
+            results = table.get(gets);
+        } finally {
+            chunks.release(table);
+        }
+        byte[][] bytes = new byte[hashes.length][];
+        for (int i = 0; i < hashes.length; i++) {
+            bytes[i] = results[i] == null ? null : results[i].getValue(CF_CHUNK, C_DATA);
+        }
+        return bytes;
+    }
+
+    /**
+     * close the idle table handles and the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        files.close();
+        chunks.close();
+        connection.close();
+    }
+
+    /**
+     * one Get for every row the shards are in, all in one request, so the
+     * sub-rows on different regions are read in parallel.
+     *
+     * @return the results by row key.
+     */
+    private Map<byte[], Result> getShards(HBaseFile hbFile, int from, int to, boolean keyOnly) throws IOException {
+        Map<byte[], Get> gets = new TreeMap<byte[], Get>(Bytes.BYTES_COMPARATOR);
+        for (int shard = from; shard <= to; shard++) {
+            byte[] rowKey = HBaseFileHelper.shardRowKey(hbFile, shard);
+            Get get = gets.get(rowKey);
+            if (get == null) {
+                get = new Get(rowKey);
+                if (keyOnly) {
+                    get.setFilter(new KeyOnlyFilter());
+                }
+                gets.put(rowKey, get);
+            }
+            get.addColumn(CF_SHARDS, Bytes.toBytes(shard));
+        }
+        List<Get> list = new ArrayList<Get>(gets.values());
+        Result[] results;
+        HTableInterface table = borrow();
+        try {
+            results = table.get(list);
+        } finally {
+            release(table);
+        }
+        Map<byte[], Result> byRow = new TreeMap<byte[], Result>(Bytes.BYTES_COMPARATOR);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null && !results[i].isEmpty()) {
+                byRow.put(list.get(i).getRow(), results[i]);
+            }
+        }
+        return byRow;
+    }
+
+    private void put(Put put) throws IOException {
+        HTableInterface table = borrow();
+        try {
+            table.put(put);
+        } finally {
+            release(table);
+        }
+    }
+
+    /**
+     * @return the result, or null if it's empty.
+     */
+    private Result get(Get get) throws IOException {
+        HTableInterface table = borrow();
+        try {
+            Result result = table.get(get);
+            return result == null || result.isEmpty() ? null : result;
+        } finally {
+            release(table);
+        }
+    }
+
+    private HTableInterface borrow() throws IOException {
+        return files.borrow();
+    }
+
+    private void release(HTableInterface table) {
+        files.release(table);
+    }
+
+    /**
+     * the idle handles of one table.
+     */
+    private class TablePool {
+
+        private final String tableName;
+
+        private final BlockingQueue<HTableInterface> tables;
+
+        TablePool(String tableName, int size) {
+            this.tableName = tableName;
+            this.tables = new ArrayBlockingQueue<HTableInterface>(size);
+        }
+
+        HTableInterface borrow() throws IOException {
+            HTableInterface table = tables.poll();
+            return table != null ? table : connection.getTable(tableName);
+        }
+
+        /**
+         * keep the table handle if the pool is not full, or close it.
+         */
+        void release(HTableInterface table) {
+            if (!tables.offer(table)) {
+                closeQuietly(table);
+            }
+        }
+
+        void close() {
+            HTableInterface table;
+            while ((table = tables.poll()) != null) {
+                closeQuietly(table);
+            }
+        }
+
+        private void closeQuietly(HTableInterface table) {
+            try {
+                table.close();
+            } catch (IOException ex) {
+                log.warn("Fail to close the table handle.", ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lychee.fs.hbase;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+
+import static org.lychee.fs.hbase.HBaseFileConst.*;
+
+/**
+ *
+ * Upload a large local file in parallel parts. <br/>
+ *
+ * Every part is one shard, read from the local file with a positional read
+ * and put on the upload pool, so the parts are read and put out of order.
+ * At most "hbase.fs.write.buffer.bytes" of them are in the air. The first
+ * shard is put before the others, with the meta in TRANSIT status, like
+ * HBaseFileOutputStream does, so a broken upload can be resumed. <br/>
+ *
+ * The parts are taken back in order by the calling thread to compute the
+ * md5, and the meta is committed once all of them are in the hbase.
+ *
+ * @author chunhui
+ * @see HBaseFileUtils#upload(File)
+ */
+class HBaseFileUploader {
+
+    private static final int ROOM = HBaseFileBufferPool.SHARD_ROOM;
+
+    private final HBaseFile hbFile;
+    private final int shardSize;
+    private final int parallel;
+
+    /**
+     *
+     * @param hbFile a NEW file.
+     */
+    HBaseFileUploader(HBaseFile hbFile) {
+        if (!hbFile.isNew()) {
+            throw new IllegalStateException("Only a NEW file can be uploaded in parts.");
+        }
+        HBaseFileHelper.setUpNewFile(hbFile, HBaseFileHelper.defaultShardSize());
+        this.hbFile = hbFile;
+        this.shardSize = hbFile.getShardSize();
+        Configuration conf = HBaseFileHelper.conf();
+        long bufferBytes = conf.getLong(WRITE_BUFFER_BYTES_KEY, DEFAULT_WRITE_BUFFER_BYTES);
+        this.parallel = (int) Math.max(1, Math.min(bufferBytes / shardSize, Integer.MAX_VALUE));
+    }
+
+    /**
+     * whether the local file should be uploaded in parts.
+     */
+    static boolean accept(File localFile) {
+        Configuration conf = HBaseFileHelper.conf();
+        long threshold = conf.getLong(UPLOAD_PARALLEL_THRESHOLD_KEY, DEFAULT_UPLOAD_PARALLEL_THRESHOLD);
+        //分块的文件按内容切分，只能顺序写入
+        return threshold > 0 && localFile.length() >= threshold
+                && !conf.getBoolean(CHUNKING_KEY, DEFAULT_CHUNKING);
+    }
+
+    /**
+     * upload the local file, the file is INTEGRITY when it returns.
+     *
+     * @param localFile
+     * @throws IOException
+     */
+    void upload(File localFile) throws IOException {
+        MessageDigest md5 = HBaseFileHelper.md5Digest();
+        Deque<Future<Part>> parts = new ArrayDeque<Future<Part>>();
+        try (RandomAccessFile raf = new RandomAccessFile(localFile, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            int shards = (int) ((size + shardSize - 1) / shardSize);
+            //第一个分片和TRANSIT状态的元数据同步入库
+            Part first = new Part(channel, 1).read();
+            hbFile.setStatus(TRANSIT);
+            hbFile.setSize(first.length);
+            hbFile.setShards(1);
+            try {
+                HBaseFileHelper.addShardBuffer(hbFile, 1, first.buffer, first.length);
+                md5.update(first.buffer, ROOM, first.length);
+            } finally {
+                HBaseFileBufferPool.give(first.buffer);
+            }
+            int shard = 2;
+            while (shard <= shards || !parts.isEmpty()) {
+                while (parts.size() < parallel && shard <= shards) {
+                    parts.add(HBaseFileExecutors.upload().submit(new Part(channel, shard++)));
+                }
+                //按顺序计算md5
+                Part part = HBaseFileExecutors.get(parts.poll());
+                md5.update(part.buffer, ROOM, part.length);
+                HBaseFileBufferPool.give(part.buffer);
+            }
+            if (raf.length() != size) {
+                throw new IOException(localFile + " was changed while uploading.");
+            }
+            hbFile.setSize(size);
+            hbFile.setShards(shards);
+        } finally {
+            Future<Part> part;
+            while ((part = parts.poll()) != null) {
+                //已经完成的分片不会再取回，归还它的缓冲区
+                if (!part.cancel(false) && part.isDone()) {
+                    try {
+                        HBaseFileBufferPool.give(HBaseFileExecutors.get(part).buffer);
+                    } catch (IOException ex) {
+                        //失败的分片已经归还
+                    }
+                }
+            }
+        }
+        hbFile.setMd5(md5.digest());
+        HBaseFileHelper.commit(hbFile);
+    }
+
+    /**
+     * one shard of the local file, it's read and put by an upload thread.
+     */
+    private class Part implements Callable<Part> {
+
+        private final FileChannel channel;
+        private final int shard;
+        private byte[] buffer;
+        private int length;
+
+        Part(FileChannel channel, int shard) {
+            this.channel = channel;
+            this.shard = shard;
+        }
+
+        Part read() throws IOException {
+            long position = (long) (shard - 1) * shardSize;
+            length = (int) Math.min(shardSize, channel.size() - position);
+            buffer = HBaseFileBufferPool.takeShard(shardSize);
+            boolean done = false;
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(buffer, ROOM, length);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, position + buf.position() - ROOM) < 0) {
+                        throw new EOFException("The local file ends in shard " + shard + ".");
+                    }
+                }
+                done = true;
+            } finally {
+                if (!done) {
+                    HBaseFileBufferPool.give(buffer);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * the buffer goes back to the pool if the shard fails, or it's
+         * given back after the md5 is updated.
+         */
+        @Override
+        public Part call() throws IOException {
+            read();
+            boolean done = false;
+            try {
+                HBaseFileHelper.addShardBuffer(hbFile, shard, buffer, length);
+                done = true;
+            } finally {
+                if (!done) {
+                    HBaseFileBufferPool.give(buffer);
+                }
+            }
+            return this;
+        }
+    }
+
+}
@@ -18,21 +18,23 @@ package org.lychee.fs.hbase;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,48 +51,250 @@ public class HBaseFileUtils {
 
 	/**
 	 * 
-	 * upload local file to the hbase file system.
+	 * use the configuration instead of the hbase-site.xml on the classpath.
+	 * Call it before using the hbase file system, the connection in use will
+	 * be closed.
+	 * 
+	 * @param conf
+	 * @throws IOException
+	 */
+	public static void configure(Configuration conf) throws IOException {
+		HBaseFileHelper.configure(conf);
+	}
+
+	/**
+	 * 
+	 * close the connection to the hbase cluster and stop the thread pools.
+	 * It connects again when the hbase file system is used.
+	 * 
+	 * @throws IOException
+	 */
+	public static void shutdown() throws IOException {
+		HBaseFileHelper.shutdown();
+	}
+
+	/**
+	 * 
+	 * the split keys to create the table pre-split by the salt buckets of
+	 * "hbase.fs.salt.buckets", one region for each bucket.
+	 * 
+	 * @return empty if the rows are not salted.
+	 */
+	public static byte[][] splitKeys() {
+		byte[][] starts = HBaseFileHelper.saltBucketStarts();
+		return starts.length == 0 ? starts : Arrays.copyOfRange(starts, 1, starts.length);
+	}
+
+	/**
+	 * 
+	 * the metrics of the shard buffers shared by the output streams: hits,
+	 * misses, waits (a stream waiting for its uploads to free a buffer),
+	 * drops (buffers over "hbase.fs.buffer.pool.bytes") and idleBytes.
+	 * 
+	 * @return
+	 */
+	public static Map<String, Long> bufferPoolMetrics() {
+		return HBaseFileBufferPool.metrics();
+	}
+
+	/**
+	 * 
+	 * upload local file to the hbase file system. The file is read only once,
+	 * the md5 is computed while uploading. <br/>
+	 * The staging identifier comes from the path, size and modify time of the
+	 * file. If an upload of the same file broke, it's resumed after the shards
+	 * already in the hbase once they are read back and compared with the local
+	 * file, it's uploaded again if "hbase.fs.upload.resume.verify" is false. A
+	 * staged file already complete is trusted only when the md5 of the local
+	 * file is the same. <br/>
+	 * A file larger than "hbase.fs.upload.parallel.threshold" is read and put
+	 * in parallel parts, see HBaseFileUploader.
 	 * 
 	 * @param localFile
 	 * @return the identifier of the file in the hbase file system.
 	 * @throws IOException
+	 * @see upload(InputStream, String)
 	 */
 	public static String upload(File localFile) throws IOException {
-		String md5 = md5Hex(localFile);
-		try (InputStream is = new FileInputStream(localFile)) {
-			HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile(md5,
+		String identifier = stagingIdentifier(localFile);
+		HBaseFile staged = HBaseFile.Factory.buildHBaseFile(identifier,
+				localFile.getName());
+		if (staged.integrity()) {
+			if (staged.getMd5().equals(md5Hex(localFile))) {
+				// 同一个文件已经上传并链接到MD5，不再链接
+				HBaseFile linked = HBaseFile.Factory.buildHBaseFile(staged.getMd5());
+				if (linked.integrity()
+						&& identifier.equals(linked.getLink())) {
+					return linked.getIdentifier();
+				}
+				// 上次已经上传完成，但是没有链接到MD5
+				return HBaseFileHelper.link(staged, staged.getMd5()).getIdentifier();
+			}
+			// 大小和修改时间没变但是内容变了，暂存的文件可能已经被链接，换一个随机的标识
+			staged = HBaseFile.Factory.buildHBaseFile(
+					HBaseFileHelper.stagingIdentifier(), localFile.getName());
+			try {
+				put(staged, localFile);
+			} catch (IOException ex) {
+				try {
+					HBaseFileHelper.delete(staged);
+				} catch (IOException e) {
+					log.warn("Fail to delete the staging file " + staged.getIdentifier(), e);
+				}
+				throw ex;
+			}
+		} else if (!(staged.isTransit() && resume(staged, localFile))) {
+			if (staged.exists()) {
+				staged.delete();
+			}
+			staged = HBaseFile.Factory.buildHBaseFile(identifier,
 					localFile.getName());
-			// 如果文件已经完整存在HBase中，是否完整作为标记符保持在HBase的列簇中一列
-			if (hbFile.integrity()) {
-				// do nothing. the file is already store in hbase cluster.
-				log.debug("文件MD5是 " + md5 + ", 已经存在，无需上传");
-			} else {
-				// 如果不完整，先删除
-				hbFile.delete();
-				// 再上传
-				hbFile = HBaseFile.Factory.buildHBaseFile(md5,
-						localFile.getName());
-				// 上传实体文件流
-				try (OutputStream ops = new HBaseFileOutputStream(hbFile)) {
-					IOUtils.copy(is, ops);
+			put(staged, localFile);
+		}
+		return HBaseFileHelper.link(staged, staged.getMd5()).getIdentifier();
+	}
+
+	/**
+	 * put the local file into the new staging file.
+	 */
+	private static void put(HBaseFile staged, File localFile) throws IOException {
+		if (HBaseFileUploader.accept(localFile)) {
+			// 大文件分片并行读取和上传
+			new HBaseFileUploader(staged).upload(localFile);
+		} else {
+			try (InputStream is = new FileInputStream(localFile);
+					OutputStream ops = new HBaseFileOutputStream(staged)) {
+				IOUtils.copy(is, ops);
+			}
+		}
+	}
+
+	/**
+	 * the same local file, with the same size and modify time, is staged
+	 * with the same identifier.
+	 */
+	static String stagingIdentifier(File localFile) throws IOException {
+		return HBaseFileHelper.stagingIdentifier(localFile.getCanonicalPath()
+				+ "\0" + localFile.length() + "\0" + localFile.lastModified());
+	}
+
+	/**
+	 * resume the TRANSIT staging file after the full shards already in the
+	 * hbase, the short last shard is written again.
+	 * 
+	 * @return false if none of the shards can be kept or they can't be read
+	 *         back to verify.
+	 */
+	private static boolean resume(HBaseFile staged, File localFile)
+			throws IOException {
+		// 不读回比较的话，分片的内容不可信，重新上传
+		if (!HBaseFileHelper.conf().getBoolean(
+				HBaseFileConst.RESUME_VERIFY_KEY,
+				HBaseFileConst.DEFAULT_RESUME_VERIFY)) {
+			return false;
+		}
+		int shardSize = staged.getShardSize();
+		// 只保留满的分片，最后一个不满的分片总是重新写入
+		int stored = HBaseFileHelper.storedShards(staged,
+				(int) Math.min(localFile.length() / shardSize, Integer.MAX_VALUE));
+		int batch = (int) Math.max(1, HBaseFileHelper.conf().getLong(
+				HBaseFileConst.READ_BATCH_BYTES_KEY,
+				HBaseFileConst.DEFAULT_READ_BATCH_BYTES) / shardSize);
+		MessageDigest md5 = HBaseFileHelper.md5Digest();
+		byte[] local = new byte[shardSize];
+		try (InputStream is = new FileInputStream(localFile)) {
+			int n = 0;
+			int shards = 0;
+			// 逐片读取本地文件，和已经上传的分片比较
+			resume: while (shards < stored) {
+				int to = Math.min(stored, shards + batch);
+				ByteBuffer[] remote = HBaseFileHelper.readStoredShards(
+						staged, shards + 1, to);
+				for (int i = 0; i < to - shards; i++) {
+					n = fill(is, local);
+					if (remote[i] == null
+							|| !remote[i].equals(ByteBuffer.wrap(local, 0, n))) {
+						shards += i;
+						break resume;
+					}
+					md5.update(local, 0, n);
+					n = 0;
 				}
+				shards = to;
+			}
+			if (shards == 0) {
+				return false;
+			}
+			log.debug("Resume " + staged.getIdentifier() + " after " + shards
+					+ " shards.");
+			try (HBaseFileOutputStream ops = new HBaseFileOutputStream(staged)) {
+				ops.resume(shards, md5);
+				// 已经读出但是不一样的分片
+				ops.write(local, 0, n);
+				IOUtils.copy(is, ops);
 			}
 		}
-		return md5;
+		return true;
+	}
+
+	/**
+	 * read until the buffer is full or the end of the stream.
+	 */
+	private static int fill(InputStream is, byte[] buffer) throws IOException {
+		int n = 0;
+		int read;
+		while (n < buffer.length
+				&& (read = is.read(buffer, n, buffer.length - n)) >= 0) {
+			n += read;
+		}
+		return n;
+	}
+
+	/**
+	 * 
+	 * upload the stream to the hbase file system, its md5 is the identifier.
+	 * The stream is read once, so it can be a socket or a pipe. <br/>
+	 * The bytes are put under a staging identifier while the md5 is computed,
+	 * then the file is linked to the md5. If the file is already integrity in
+	 * the hbase cluster, the uploaded bytes are dropped.
+	 * 
+	 * @param is
+	 * @param desc the description of the file, eg. file name
+	 * @return the identifier of the file in the hbase file system.
+	 * @throws IOException
+	 */
+	public static String upload(InputStream is, String desc) throws IOException {
+		HBaseFile staged = HBaseFile.Factory.buildHBaseFile(
+				HBaseFileHelper.stagingIdentifier(), desc);
+		try {
+			try (OutputStream ops = new HBaseFileOutputStream(staged)) {
+				IOUtils.copy(is, ops);
+			}
+			HBaseFile hbFile = HBaseFileHelper.link(staged, staged.getMd5());
+			return hbFile.getIdentifier();
+		} catch (IOException ex) {
+			// 上传失败，删除暂存的文件
+			try {
+				HBaseFileHelper.delete(staged);
+			} catch (IOException e) {
+				log.warn("Fail to delete the staging file " + staged.getIdentifier(), e);
+			}
+			throw ex;
+		}
 	}
 
 	/**
 	 * 
 	 * upload local files to the hbase file system.
-	 * MultiThread Batch Upload
+	 * MultiThread Batch Upload on the shared pool of
+	 * "hbase.fs.transfer.threads". A failed upload fails its future.
 	 * 
 	 * @param localFiles
 	 * @return the identifier of the file in the hbase file system.
-	 * @throws IOException
+	 * @see uploadAll(Collection)
 	 */
 	public static List<Future<String>> upload(Collection<File> localFiles) {
-		//开启过多线程可能引起性能问题，这里先设置最多5个线程
-		ExecutorService executorService = Executors.newFixedThreadPool(5);
+		ExecutorService executorService = HBaseFileExecutors.transfer();
 		List<Future<String>> md5List=new ArrayList<Future<String>>();
 
 		for (File thisFile : localFiles) {
@@ -100,10 +304,66 @@ public class HBaseFileUtils {
 		return md5List;
 	}
 
+	/**
+	 * 
+	 * upload local files to the hbase file system on the shared pool of
+	 * "hbase.fs.transfer.threads". The results come in the order they
+	 * complete, each with the identifier or the error of its file.
+	 * 
+	 * @param localFiles
+	 * @return
+	 */
+	public static HBaseFileBatch<File, String> uploadAll(Collection<File> localFiles) {
+		return new HBaseFileBatch<File, String>(localFiles,
+				new HBaseFileBatch.Transfer<File, String>() {
+					@Override
+					public String transfer(File localFile) throws IOException {
+						return upload(localFile);
+					}
+				}, batchWindow());
+	}
+
+	/**
+	 * 
+	 * download the files to the directory, each is named by its identifier.
+	 * The results come in the order they complete, each with the local file
+	 * or the error.
+	 * 
+	 * @param identifiers
+	 * @param dir it's created if it does not exist.
+	 * @return
+	 * @throws IOException
+	 */
+	public static HBaseFileBatch<String, File> download(Collection<String> identifiers,
+			final File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Fail to create the directory " + dir);
+		}
+		return new HBaseFileBatch<String, File>(identifiers,
+				new HBaseFileBatch.Transfer<String, File>() {
+					@Override
+					public File transfer(String identifier) throws IOException {
+						File localFile = new File(dir, identifier);
+						download(identifier, localFile);
+						return localFile;
+					}
+				}, batchWindow());
+	}
+
+	/**
+	 * the files submitted at a time, enough to keep the threads busy.
+	 */
+	private static int batchWindow() {
+		return 2 * HBaseFileHelper.conf().getInt(
+				HBaseFileConst.TRANSFER_THREADS_KEY,
+				HBaseFileConst.DEFAULT_TRANSFER_THREADS);
+	}
+
 	/**
 	 * 
 	 * download the file in the hbase file system to the local file. the file
-	 * must dose exist and integrity.
+	 * must dose exist and integrity. The shards are fetched in parallel and
+	 * written at their offsets in the local file, see HBaseFileDownloader.
 	 * 
 	 * @param identifier
 	 * @param localFile
@@ -112,17 +372,7 @@ public class HBaseFileUtils {
 	public static void download(String identifier, File localFile)
 			throws IOException {
 		HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile(identifier);
-		if (!hbFile.integrity()) {
-			throw new IOException(
-					"Fail to read the file in the hbase file system.");
-		}
-		try (InputStream is = new HBaseFileInputStream(hbFile)) {
-			FileUtils.deleteQuietly(localFile);
-			try (OutputStream os = new FileOutputStream(localFile)) {
-				// 将读入内存的is写到os，实现文件流从内存写入磁盘
-				IOUtils.copy(is, os);
-			}
-		}
+		new HBaseFileDownloader(hbFile).download(localFile);
 	}
 
 	public static String md5Hex(File file) throws IOException {
@@ -148,12 +398,12 @@ class UploadRunnable implements Callable<String> {
 		this.thisUploadFile = thisUploadFile;
 	}
 
-	public String call() {
+	public String call() throws IOException {
 		try {
 			thisUploadFileMD5 = HBaseFileUtils.upload(thisUploadFile);
 		} catch (IOException e) {
-			log.error("多线程上传出错:" + thisUploadFile.getAbsolutePath());
-			e.printStackTrace();
+			log.error("多线程上传出错:" + thisUploadFile.getAbsolutePath(), e);
+			throw e;
 		}
 		return thisUploadFileMD5;
 	}
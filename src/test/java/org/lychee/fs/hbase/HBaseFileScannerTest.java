@@ -16,8 +16,10 @@
 
 package org.lychee.fs.hbase;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -104,9 +106,19 @@ public class HBaseFileScannerTest {
      * Test of count method, of class HBaseFileSystem.
      */
     @Test
-    public void testCount() {
+    public void testCount() throws IOException {
         System.out.println("count");
-        // TODO has not been impl.
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        try {
+            assertEquals(0, hbfs.count());
+            HBaseFileUtils.upload(new ByteArrayInputStream(Bytes.toBytes("count-1")), "count-1");
+            HBaseFileUtils.upload(new ByteArrayInputStream(Bytes.toBytes("count-2")), "count-2");
+            //the same content is stored once
+            HBaseFileUtils.upload(new ByteArrayInputStream(Bytes.toBytes("count-2")), "count-2");
+            assertEquals(2, hbfs.count());
+        } finally {
+            HBaseFileHelper.setStore(null);
+        }
     }
     
 }
@@ -0,0 +1,1292 @@
+/*
+ * Copyright 2014 chunhui.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lychee.fs.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.hbase.client.Result;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Read and write HBase files on the HBaseFileMemoryStore, no hbase cluster
+ * is needed.
+ *
+ * @author chunhui
+ */
+public class HBaseFileStreamTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @BeforeClass
+    public static void setUpClass() {
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        HBaseFileHelper.setStore(null);
+    }
+
+    @Test
+    public void writeAndReadBack() throws IOException {
+        int[] sizes = {1, 1000, MB - 1, MB, MB + 1, 3 * MB + MB / 2};
+        for (int size : sizes) {
+            byte[] content = randomBytes(size);
+            String identifier = "writeAndReadBack-" + size;
+            write(identifier, content);
+
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile(identifier);
+            assertTrue(hbFile.integrity());
+            assertEquals(size, hbFile.getSize());
+            assertEquals("desc-" + identifier, hbFile.getDesc());
+            assertArrayEquals(content, read(hbFile));
+        }
+    }
+
+    @Test
+    public void bulkWrite() throws IOException {
+        byte[] content = randomBytes(3 * MB + 77);
+        HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("bulkWrite");
+        try (OutputStream os = new HBaseFileOutputStream(hbFile)) {
+            os.write(content, 0, 10);
+            os.flush();
+            // crosses a shard boundary through the cache
+            os.write(content, 10, MB);
+            os.write(content[MB + 10]);
+            os.write(content, MB + 11, MB - 11);
+            // a whole shard and the short last one
+            os.write(content, 2 * MB, MB + 77);
+        }
+        hbFile = HBaseFile.Factory.buildHBaseFile("bulkWrite");
+        assertEquals(4, hbFile.getShards());
+        assertArrayEquals(content, read(hbFile));
+    }
+
+    @Test
+    public void asyncWrite() throws IOException {
+        byte[] content = randomBytes(7 * MB + 7);
+        HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("asyncWrite");
+        try (OutputStream os = new HBaseFileOutputStream(hbFile, true)) {
+            os.write(content, 0, 3);
+            os.write(content, 3, 4 * MB);
+            os.write(content, 4 * MB + 3, 3 * MB + 4);
+        }
+        hbFile = HBaseFile.Factory.buildHBaseFile("asyncWrite");
+        assertTrue(hbFile.integrity());
+        assertEquals(content.length, hbFile.getSize());
+        assertArrayEquals(content, read(hbFile));
+    }
+
+    @Test
+    public void asyncWriteFailure() throws IOException {
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+                if (shard == 3) {
+                    throw new IOException("shard " + shard);
+                }
+                super.addShard(hbFile, shard, bytes, offset, length);
+            }
+        });
+        try {
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("asyncWriteFailure");
+            OutputStream os = new HBaseFileOutputStream(hbFile, true);
+            try {
+                os.write(randomBytes(5 * MB));
+                os.close();
+                fail("the failed shard is not reported.");
+            } catch (IOException ex) {
+                assertEquals("shard 3", ex.getMessage());
+            }
+            assertFalse(HBaseFile.Factory.buildHBaseFile("asyncWriteFailure").integrity());
+        } finally {
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void writeAfterClose() throws IOException {
+        for (boolean async : new boolean[]{false, true}) {
+            OutputStream os = new HBaseFileOutputStream(
+                    HBaseFile.Factory.buildHBaseFile("writeAfterClose-" + async), async);
+            os.write(randomBytes(MB + 1));
+            os.close();
+            os.close();
+            try {
+                os.write(1);
+                fail("the stream is closed");
+            } catch (IOException ex) {
+                assertEquals("Stream closed", ex.getMessage());
+            }
+            try {
+                os.write(new byte[10]);
+                fail("the stream is closed");
+            } catch (IOException ex) {
+                assertEquals("Stream closed", ex.getMessage());
+            }
+            try {
+                os.flush();
+                fail("the stream is closed");
+            } catch (IOException ex) {
+                assertEquals("Stream closed", ex.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void perFileShardSize() throws IOException {
+        byte[] content = randomBytes(MB + 5);
+        HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("perFileShardSize");
+        try (OutputStream os = new HBaseFileOutputStream(hbFile, 100000, false)) {
+            os.write(content);
+        }
+        hbFile = HBaseFile.Factory.buildHBaseFile("perFileShardSize");
+        assertEquals(100000, hbFile.getShardSize());
+        assertEquals(11, hbFile.getShards());
+        assertArrayEquals(content, read(hbFile));
+        try (HBaseFileInputStream is = new HBaseFileInputStream(hbFile)) {
+            is.seek(MB);
+            assertEquals(content[MB] & 0xff, is.read());
+            byte[] buf = new byte[3];
+            is.readFully(99999, buf);
+            assertArrayEquals(Arrays.copyOfRange(content, 99999, 100002), buf);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shardSizeLargerThanKeyValue() {
+        int maxKeyValueSize = HBaseFileHelper.conf().getInt("hbase.client.keyvalue.maxsize", 10 * MB);
+        new HBaseFileOutputStream(HBaseFile.Factory.buildHBaseFile("tooLarge"), maxKeyValueSize + 1, false);
+    }
+
+    @Test
+    public void inlineSmallFile() throws IOException {
+        final AtomicInteger rpcs = new AtomicInteger();
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public void saveOrUpdateMeta(HBaseFile hbFile) throws IOException {
+                rpcs.incrementAndGet();
+                super.saveOrUpdateMeta(hbFile);
+            }
+
+            @Override
+            public Result readMeta(HBaseFile hbFile) throws IOException {
+                rpcs.incrementAndGet();
+                return super.readMeta(hbFile);
+            }
+
+            @Override
+            public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+                rpcs.incrementAndGet();
+                super.addShard(hbFile, shard, bytes, offset, length);
+            }
+
+            @Override
+            public byte[][] readShards(HBaseFile hbFile, int from, int to) throws IOException {
+                rpcs.incrementAndGet();
+                return super.readShards(hbFile, from, to);
+            }
+        });
+        try {
+            for (int size : new int[]{0, 3000}) {
+                byte[] content = randomBytes(size);
+                HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("inline-" + size);
+                rpcs.set(0);
+                try (OutputStream os = new HBaseFileOutputStream(hbFile)) {
+                    os.write(content);
+                }
+                assertEquals(1, rpcs.get());
+
+                rpcs.set(0);
+                hbFile = HBaseFile.Factory.buildHBaseFile("inline-" + size);
+                assertTrue(hbFile.integrity());
+                assertArrayEquals(content, read(hbFile));
+                assertEquals(1, rpcs.get());
+            }
+        } finally {
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void commitProtocol() throws IOException {
+        final List<String> rpcs = new ArrayList<String>();
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public void saveOrUpdateMeta(HBaseFile hbFile) throws IOException {
+                rpcs.add("meta");
+                super.saveOrUpdateMeta(hbFile);
+            }
+
+            @Override
+            public boolean commit(HBaseFile hbFile) throws IOException {
+                rpcs.add("commit");
+                return super.commit(hbFile);
+            }
+
+            @Override
+            public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+                rpcs.add("shard" + shard);
+                super.addShard(hbFile, shard, bytes, offset, length);
+            }
+        });
+        try {
+            byte[] content = randomBytes(2 * MB + 1);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("commit");
+            try (OutputStream os = new HBaseFileOutputStream(hbFile)) {
+                os.write(content);
+                // the first shard makes the file TRANSIT
+                HBaseFile transit = HBaseFile.Factory.buildHBaseFile("commit");
+                assertTrue(transit.exists());
+                assertFalse(transit.integrity());
+            }
+            assertEquals(Arrays.asList("shard1", "shard2", "shard3", "commit"), rpcs);
+            hbFile = HBaseFile.Factory.buildHBaseFile("commit");
+            assertTrue(hbFile.integrity());
+            assertEquals(3, hbFile.getShards());
+            assertEquals(DigestUtils.md5Hex(content), hbFile.getMd5());
+            assertArrayEquals(content, read(hbFile));
+
+            // deleted by others before commit
+            hbFile = HBaseFile.Factory.buildHBaseFile("commitDeleted");
+            OutputStream os = new HBaseFileOutputStream(hbFile);
+            os.write(content);
+            HBaseFile.Factory.buildHBaseFile("commitDeleted").delete();
+            try {
+                os.close();
+                fail("the deleted file is committed.");
+            } catch (IOException ex) {
+                assertFalse(hbFile.integrity());
+            }
+            assertFalse(HBaseFile.Factory.buildHBaseFile("commitDeleted").integrity());
+        } finally {
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void bulkReadSkipAndTransfer() throws IOException {
+        byte[] content = randomBytes(2 * MB + 123);
+        write("bulkRead", content);
+        HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("bulkRead");
+
+        try (HBaseFileInputStream is = new HBaseFileInputStream(hbFile)) {
+            assertEquals(0, is.available());
+            assertEquals(content[0] & 0xff, is.read());
+            assertEquals(MB - 1, is.available());
+            byte[] buf = new byte[MB];
+            // a bulk read stops at the end of the current shard
+            assertEquals(MB - 1, is.read(buf, 0, buf.length));
+            assertEquals(MB + 10, is.skip(MB + 10));
+            assertEquals(content[2 * MB + 10] & 0xff, is.read());
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            assertEquals(112, is.transferTo(Channels.newChannel(bos)));
+            assertArrayEquals(Arrays.copyOfRange(content, 2 * MB + 11, content.length), bos.toByteArray());
+            assertEquals(-1, is.read(buf, 0, buf.length));
+            assertEquals(0, is.skip(1));
+        }
+
+        File localFile = File.createTempFile("bulkRead", ".tmp");
+        try {
+            HBaseFileUtils.download("bulkRead", localFile);
+            assertArrayEquals(content, FileUtils.readFileToByteArray(localFile));
+        } finally {
+            FileUtils.deleteQuietly(localFile);
+        }
+    }
+
+    @Test
+    public void readAhead() throws IOException {
+        byte[] content = randomBytes(5 * MB + 5);
+        write("readAhead", content);
+        HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("readAhead");
+
+        for (int readAhead : new int[]{0, 1, 3, 100}) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (HBaseFileInputStream is = new HBaseFileInputStream(hbFile, readAhead)) {
+                is.transferTo(bos);
+            }
+            assertArrayEquals(content, bos.toByteArray());
+        }
+        try (HBaseFileInputStream is = new HBaseFileInputStream(hbFile, 3)) {
+            assertEquals(content[0] & 0xff, is.read());
+            is.close();
+            assertEquals(-1, is.read());
+        }
+    }
+
+    @Test
+    public void seekAndPositionedRead() throws IOException {
+        final AtomicInteger shardsRead = new AtomicInteger();
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public byte[][] readShards(HBaseFile hbFile, int from, int to) throws IOException {
+                shardsRead.addAndGet(to - from + 1);
+                return super.readShards(hbFile, from, to);
+            }
+        });
+        try {
+            byte[] content = randomBytes(20 * MB + 20);
+            write("seek", content);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("seek");
+
+            try (HBaseFileInputStream is = new HBaseFileInputStream(hbFile, 0)) {
+                is.seek(17 * MB + 5);
+                assertEquals(17 * MB + 5, is.getPos());
+                assertEquals(content[17 * MB + 5] & 0xff, is.read());
+                // back in the same shard, nothing is fetched
+                is.seek(17 * MB);
+                assertEquals(content[17 * MB] & 0xff, is.read());
+                is.seek(content.length);
+                assertEquals(-1, is.read());
+                is.seek(1);
+                assertEquals(content[1] & 0xff, is.read());
+                assertEquals(2, is.getPos());
+
+                byte[] buf = new byte[MB + 2];
+                is.readFully(19 * MB - 1, buf);
+                assertArrayEquals(Arrays.copyOfRange(content, 19 * MB - 1, 20 * MB + 1), buf);
+                assertEquals(2, is.getPos());
+                assertEquals(10, is.read(20 * MB + 10, buf, 0, buf.length));
+                assertEquals(-1, is.read(content.length, buf, 0, 1));
+            }
+            // 4 shards from 17 by the batched read, 4 from 1, 3 for readFully, 1 for read
+            assertEquals(12, shardsRead.get());
+        } finally {
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void batchedRead() throws IOException {
+        final AtomicInteger gets = new AtomicInteger();
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public byte[][] readShards(HBaseFile hbFile, int from, int to) throws IOException {
+                gets.incrementAndGet();
+                return super.readShards(hbFile, from, to);
+            }
+        });
+        try {
+            byte[] content = randomBytes(10 * MB - 1);
+            write("batchedRead", content);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("batchedRead");
+            assertArrayEquals(content, read(hbFile));
+            // 4 MB in one Get by default
+            assertEquals(3, gets.get());
+        } finally {
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void configureAndShutdown() throws IOException {
+        Configuration old = HBaseFileHelper.conf();
+        Configuration conf = new Configuration(old);
+        conf.set(HBaseFileConst.STORE_KEY, HBaseFileConst.STORE_MEMORY);
+        conf.setInt(HBaseFileConst.SHARD_SIZE_KEY, 1024);
+        conf.setInt(HBaseFileConst.INLINE_THRESHOLD_KEY, 0);
+        try {
+            HBaseFileUtils.configure(conf);
+            byte[] content = randomBytes(3000);
+            write("configureAndShutdown", content);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("configureAndShutdown");
+            assertEquals(1024, hbFile.getShardSize());
+            assertEquals(3, hbFile.getShards());
+            assertArrayEquals(content, read(hbFile));
+
+            //the memory store is dropped with the files in it
+            HBaseFileUtils.shutdown();
+            assertFalse(HBaseFile.Factory.buildHBaseFile("configureAndShutdown").exists());
+        } finally {
+            HBaseFileHelper.configure(old);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void streamingUpload() throws IOException {
+        byte[] content = randomBytes(2 * MB + 100);
+        String identifier = HBaseFileUtils.upload(new ByteArrayInputStream(content), "streamingUpload");
+        assertEquals(DigestUtils.md5Hex(content), identifier);
+        HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile(identifier);
+        assertTrue(hbFile.integrity());
+        assertEquals("streamingUpload", hbFile.getDesc());
+        assertArrayEquals(content, read(hbFile));
+        assertEquals(1, stagingRows());
+
+        //the same content is deduplicated
+        assertEquals(identifier, HBaseFileUtils.upload(new ByteArrayInputStream(content), "again"));
+        assertEquals("streamingUpload", HBaseFile.Factory.buildHBaseFile(identifier).getDesc());
+        assertEquals(1, stagingRows());
+
+        //a small file is copied, no link
+        byte[] small = randomBytes(100);
+        String smallId = HBaseFileUtils.upload(new ByteArrayInputStream(small), "small");
+        assertArrayEquals(small, read(HBaseFile.Factory.buildHBaseFile(smallId)));
+        assertEquals(1, stagingRows());
+
+        HBaseFile.Factory.buildHBaseFile(identifier).delete();
+        assertFalse(HBaseFile.Factory.buildHBaseFile(identifier).exists());
+        assertEquals(0, stagingRows());
+    }
+
+    private static int stagingRows() throws IOException {
+        int rows = 0;
+        for (Result result : HBaseFileHelper.scan()) {
+            if (HBaseFileHelper.isStaging(HBaseFileHelper.identifier(result.getRow()))) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void chunkedDedup() throws IOException {
+        final AtomicInteger puts = new AtomicInteger();
+        HBaseFileMemoryStore store = new HBaseFileMemoryStore() {
+            @Override
+            public void putChunk(byte[] hash, byte[] bytes, int offset, int length) throws IOException {
+                puts.incrementAndGet();
+                super.putChunk(hash, bytes, offset, length);
+            }
+        };
+        Configuration conf = HBaseFileHelper.conf();
+        conf.setBoolean(HBaseFileConst.CHUNKING_KEY, true);
+        conf.setInt(HBaseFileConst.CHUNK_MIN_SIZE_KEY, 4 * 1024);
+        conf.setInt(HBaseFileConst.CHUNK_AVG_SIZE_KEY, 16 * 1024);
+        conf.setInt(HBaseFileConst.CHUNK_MAX_SIZE_KEY, 64 * 1024);
+        HBaseFileHelper.setStore(store);
+        try {
+            byte[] v1 = randomBytes(3 * MB);
+            byte[] v2 = new byte[v1.length + 100];
+            System.arraycopy(v1, 0, v2, 0, MB);
+            System.arraycopy(v1, MB, v2, MB + 100, v1.length - MB);
+
+            HBaseFile f1 = HBaseFile.Factory.buildHBaseFile("chunkedDedup-1");
+            try (OutputStream os = new HBaseFileOutputStream(f1)) {
+                os.write(v1);
+            }
+            int chunks = puts.get();
+            assertEquals(chunks, store.chunkCount());
+            assertTrue(chunks > 10);
+            puts.set(0);
+            write("chunkedDedup-2", v2);
+            //only the chunks around the insert are new
+            assertTrue(puts.get() <= 3);
+
+            HBaseFile f2 = HBaseFile.Factory.buildHBaseFile("chunkedDedup-2");
+            assertEquals(DigestUtils.md5Hex(v2), f2.getMd5());
+            assertArrayEquals(v1, read(HBaseFile.Factory.buildHBaseFile("chunkedDedup-1")));
+            assertArrayEquals(v2, read(f2));
+            try (HBaseFileInputStream is = new HBaseFileInputStream(f2)) {
+                byte[] b = new byte[300];
+                is.readFully(MB - 100, b);
+                assertArrayEquals(Arrays.copyOfRange(v2, MB - 100, MB + 200), b);
+                is.seek(2 * MB);
+                assertEquals(v2[2 * MB] & 0xff, is.read());
+            }
+
+            //the shared chunks are kept until the last file is deleted
+            HBaseFile.Factory.buildHBaseFile("chunkedDedup-1").delete();
+            assertArrayEquals(v2, read(HBaseFile.Factory.buildHBaseFile("chunkedDedup-2")));
+            HBaseFile.Factory.buildHBaseFile("chunkedDedup-2").delete();
+            assertEquals(0, store.chunkCount());
+
+            //like checkAndDelete on the table, only a chunk with 0 refs is deleted
+            byte[] hash = HBaseFileHelper.sha1Digest().digest(v1);
+            assertFalse(store.deleteChunk(hash));
+            store.putChunk(hash, v1, 0, 100);
+            assertFalse(store.deleteChunk(hash));
+            store.addChunkRefs(hash, -1);
+            assertFalse(store.deleteChunk(hash));
+            store.addChunkRefs(hash, 1);
+            assertTrue(store.deleteChunk(hash));
+            assertEquals(0, store.chunkCount());
+        } finally {
+            conf.setBoolean(HBaseFileConst.CHUNKING_KEY, false);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void compressedShards() throws IOException {
+        final AtomicInteger stored = new AtomicInteger();
+        final List<Thread> writers = Collections.synchronizedList(new ArrayList<Thread>());
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+                stored.addAndGet(length);
+                if (shard > 1) {
+                    writers.add(Thread.currentThread());
+                }
+                super.addShard(hbFile, shard, bytes, offset, length);
+            }
+        });
+        Configuration conf = HBaseFileHelper.conf();
+        conf.set(HBaseFileConst.CODEC_KEY, "deflate");
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; sb.length() < 3 * MB; i++) {
+                sb.append("2014-06-01 12:00:00 INFO request ").append(i).append(" done\n");
+            }
+            byte[] text = sb.toString().getBytes("UTF-8");
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("compressedShards-text");
+            try (OutputStream os = new HBaseFileOutputStream(hbFile, false)) {
+                os.write(text);
+            }
+            assertTrue(stored.get() < text.length / 4);
+            //the shards are compressed in the upload threads even if the stream is not async
+            assertEquals(3, writers.size());
+            assertFalse(writers.contains(Thread.currentThread()));
+            hbFile = HBaseFile.Factory.buildHBaseFile("compressedShards-text");
+            assertEquals("deflate", hbFile.getCodec());
+            assertArrayEquals(text, read(hbFile));
+            try (HBaseFileInputStream is = new HBaseFileInputStream(hbFile)) {
+                byte[] b = new byte[100];
+                is.readFully(MB - 50, b);
+                assertArrayEquals(Arrays.copyOfRange(text, MB - 50, MB + 50), b);
+            }
+
+            //random bytes do not shrink, they are kept raw
+            stored.set(0);
+            byte[] random = randomBytes(2 * MB);
+            write("compressedShards-random", random);
+            assertEquals(random.length + 2 * HBaseFileCodec.HEADER_SIZE, stored.get());
+            assertArrayEquals(random, read(HBaseFile.Factory.buildHBaseFile("compressedShards-random")));
+        } finally {
+            conf.set(HBaseFileConst.CODEC_KEY, HBaseFileConst.DEFAULT_CODEC);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void brokenShards() throws IOException {
+        final AtomicInteger broken = new AtomicInteger();
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public byte[][] readShards(HBaseFile hbFile, int from, int to) throws IOException {
+                byte[][] shards = super.readShards(hbFile, from, to);
+                for (int shard = from; shard <= to; shard++) {
+                    if (shard == broken.get()) {
+                        byte[] bytes = shards[shard - from].clone();
+                        bytes[bytes.length - 1] ^= 1;
+                        shards[shard - from] = bytes;
+                    } else if (shard == -broken.get()) {
+                        shards[shard - from] = null;
+                    }
+                }
+                return shards;
+            }
+        });
+        try {
+            byte[] content = randomBytes(3 * MB);
+            write("brokenShards", content);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("brokenShards");
+            assertArrayEquals(content, read(hbFile));
+
+            broken.set(2);
+            try {
+                read(hbFile);
+                fail("shard 2 is broken");
+            } catch (ChecksumException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("Shard 2 "));
+                assertEquals(MB, ex.getPos());
+            }
+
+            //a missing shard is found by the md5
+            broken.set(-3);
+            try {
+                read(hbFile);
+                fail("shard 3 is missing");
+            } catch (ChecksumException ex) {
+                assertEquals(2 * MB, ex.getPos());
+            }
+        } finally {
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void resumeUpload() throws IOException {
+        final List<Integer> shards = new ArrayList<Integer>();
+        final boolean[] commits = {true};
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+                shards.add(shard);
+                super.addShard(hbFile, shard, bytes, offset, length);
+            }
+
+            @Override
+            public boolean commit(HBaseFile hbFile) throws IOException {
+                return commits[0] && super.commit(hbFile);
+            }
+        });
+        File localFile = File.createTempFile("resumeUpload", ".tmp");
+        try {
+            byte[] content = randomBytes(3 * MB + MB / 2);
+            FileUtils.writeByteArrayToFile(localFile, content);
+
+            //an upload broken after 2 shards
+            HBaseFile staged = HBaseFile.Factory.buildHBaseFile(HBaseFileUtils.stagingIdentifier(localFile));
+            new HBaseFileOutputStream(staged, false).write(content, 0, 2 * MB);
+            shards.clear();
+            assertEquals(DigestUtils.md5Hex(content), HBaseFileUtils.upload(localFile));
+            assertEquals(Arrays.asList(3, 4), shards);
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile(DigestUtils.md5Hex(content))));
+            HBaseFile.Factory.buildHBaseFile(DigestUtils.md5Hex(content)).delete();
+
+            //the second shard in the hbase is not the same as the local one
+            staged = HBaseFile.Factory.buildHBaseFile(HBaseFileUtils.stagingIdentifier(localFile));
+            OutputStream os = new HBaseFileOutputStream(staged, false);
+            os.write(content, 0, MB);
+            os.write(randomBytes(MB));
+            shards.clear();
+            assertEquals(DigestUtils.md5Hex(content), HBaseFileUtils.upload(localFile));
+            assertEquals(Arrays.asList(2, 3, 4), shards);
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile(DigestUtils.md5Hex(content))));
+            HBaseFile.Factory.buildHBaseFile(DigestUtils.md5Hex(content)).delete();
+
+            //all the shards are stored, but the upload broke before the commit
+            staged = HBaseFile.Factory.buildHBaseFile(HBaseFileUtils.stagingIdentifier(localFile));
+            commits[0] = false;
+            try (OutputStream broken = new HBaseFileOutputStream(staged, false)) {
+                broken.write(content);
+            } catch (IOException expected) {
+            }
+            commits[0] = true;
+            shards.clear();
+            assertEquals(DigestUtils.md5Hex(content), HBaseFileUtils.upload(localFile));
+            //the short last shard is written again
+            assertEquals(Arrays.asList(4), shards);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile(DigestUtils.md5Hex(content));
+            assertEquals(content.length, hbFile.getSize());
+            assertArrayEquals(content, read(hbFile));
+        } finally {
+            FileUtils.deleteQuietly(localFile);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void uploadTwice() throws IOException {
+        final List<Integer> shards = new ArrayList<Integer>();
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+                shards.add(shard);
+                super.addShard(hbFile, shard, bytes, offset, length);
+            }
+        });
+        File localFile = File.createTempFile("uploadTwice", ".tmp");
+        try {
+            byte[] content = randomBytes(2 * MB + 100);
+            FileUtils.writeByteArrayToFile(localFile, content);
+            String md5 = DigestUtils.md5Hex(content);
+            assertEquals(md5, HBaseFileUtils.upload(localFile));
+
+            //the unchanged file is linked already, nothing is put or dropped
+            shards.clear();
+            assertEquals(md5, HBaseFileUtils.upload(localFile));
+            assertTrue(shards.isEmpty());
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile(md5)));
+
+            //linking again keeps the staging row the file links to
+            HBaseFile staged = HBaseFile.Factory.buildHBaseFile(HBaseFileUtils.stagingIdentifier(localFile));
+            assertEquals(md5, HBaseFileHelper.link(staged, md5).getIdentifier());
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile(md5)));
+
+            //the content changes, but the size and modify time are the same
+            long modified = localFile.lastModified();
+            byte[] changed = content.clone();
+            changed[MB + 1]++;
+            FileUtils.writeByteArrayToFile(localFile, changed);
+            assertTrue(localFile.setLastModified(modified));
+            assertEquals(HBaseFileUtils.stagingIdentifier(localFile), staged.getIdentifier());
+            String changedMd5 = DigestUtils.md5Hex(changed);
+            assertEquals(changedMd5, HBaseFileUtils.upload(localFile));
+            assertArrayEquals(changed, read(HBaseFile.Factory.buildHBaseFile(changedMd5)));
+            //the old file still reads
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile(md5)));
+        } finally {
+            FileUtils.deleteQuietly(localFile);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void blockRows() throws IOException {
+        HBaseFileMemoryStore store = new HBaseFileMemoryStore();
+        HBaseFileHelper.setStore(store);
+        Configuration conf = HBaseFileHelper.conf();
+        conf.setInt(HBaseFileConst.BLOCK_SHARDS_KEY, 2);
+        try {
+            byte[] content = randomBytes(5 * MB - 10);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("blockRows");
+            try (OutputStream os = new HBaseFileOutputStream(hbFile, true)) {
+                os.write(content);
+            }
+            //shards 1-2 in the file row, 3-4 and 5 in two sub-rows
+            assertEquals(3, store.rowCount());
+            hbFile = HBaseFile.Factory.buildHBaseFile("blockRows");
+            assertArrayEquals(content, read(hbFile));
+            try (HBaseFileInputStream is = new HBaseFileInputStream(hbFile)) {
+                byte[] b = new byte[2 * MB];
+                is.readFully(MB + 5, b);
+                assertArrayEquals(Arrays.copyOfRange(content, MB + 5, 3 * MB + 5), b);
+            }
+            assertEquals(1, HBaseFileSystem.instance().scan().next(10).size());
+            hbFile.delete();
+            assertEquals(0, store.rowCount());
+
+            //the staging sub-rows go with the linked file
+            String identifier = HBaseFileUtils.upload(new ByteArrayInputStream(content), "blockRows");
+            assertEquals(4, store.rowCount());
+            HBaseFile.Factory.buildHBaseFile(identifier).delete();
+            assertEquals(0, store.rowCount());
+
+            //the flat layout
+            conf.setInt(HBaseFileConst.BLOCK_SHARDS_KEY, 0);
+            write("blockRows-flat", content);
+            assertEquals(1, store.rowCount());
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile("blockRows-flat")));
+        } finally {
+            conf.setInt(HBaseFileConst.BLOCK_SHARDS_KEY, HBaseFileConst.DEFAULT_BLOCK_SHARDS);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void deleteAndScan() throws IOException {
+        write("deleteAndScan-1", randomBytes(10));
+        write("deleteAndScan-2", randomBytes(10));
+        HBaseFile.Factory.buildHBaseFile("deleteAndScan-1").delete();
+
+        assertFalse(HBaseFile.Factory.buildHBaseFile("deleteAndScan-1").exists());
+        boolean found = false;
+        HBaseFileResultScanAdapter scanner = HBaseFileSystem.instance().scan();
+        HBaseFile hbFile;
+        while ((hbFile = scanner.nextOne()) != null) {
+            assertNotEquals("deleteAndScan-1", hbFile.getIdentifier());
+            found |= "deleteAndScan-2".equals(hbFile.getIdentifier());
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void saltedRows() throws IOException {
+        Configuration old = HBaseFileHelper.conf();
+        Configuration conf = new Configuration(old);
+        conf.set(HBaseFileConst.STORE_KEY, HBaseFileConst.STORE_MEMORY);
+        conf.setInt(HBaseFileConst.SALT_BUCKETS_KEY, 4);
+        conf.setInt(HBaseFileConst.BLOCK_SHARDS_KEY, 1);
+        try {
+            HBaseFileUtils.configure(conf);
+            HBaseFileMemoryStore store = new HBaseFileMemoryStore();
+            HBaseFileHelper.setStore(store);
+            for (int i = 19; i >= 0; i--) {
+                write(String.format("salt-%03d", i), randomBytes(10 + i));
+            }
+            byte[] content = randomBytes(2 * MB + 1);
+            write("salt-large", content);
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile("salt-large")));
+            assertArrayEquals(randomBytes(15), read(HBaseFile.Factory.buildHBaseFile("salt-005")));
+
+            //the buckets are merged in the order of the identifiers
+            List<String> identifiers = new ArrayList<String>();
+            HBaseFileResultScanAdapter scanner = HBaseFileSystem.instance().scan();
+            HBaseFile hbFile;
+            while ((hbFile = scanner.nextOne()) != null) {
+                identifiers.add(hbFile.getIdentifier());
+            }
+            assertEquals(21, identifiers.size());
+            assertEquals("salt-000", identifiers.get(0));
+            assertEquals("salt-large", identifiers.get(20));
+            List<String> sorted = new ArrayList<String>(identifiers);
+            Collections.sort(sorted);
+            assertEquals(sorted, identifiers);
+
+            HBaseFile.Factory.buildHBaseFile("salt-large").delete();
+            assertEquals(20, store.rowCount());
+        } finally {
+            HBaseFileHelper.configure(old);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void binaryIdentifiers() throws IOException {
+        Configuration old = HBaseFileHelper.conf();
+        Configuration conf = new Configuration(old);
+        conf.set(HBaseFileConst.STORE_KEY, HBaseFileConst.STORE_MEMORY);
+        conf.setBoolean(HBaseFileConst.IDENTIFIER_BINARY_KEY, true);
+        try {
+            HBaseFileUtils.configure(conf);
+            byte[] content = randomBytes(MB + 1);
+            String md5 = DigestUtils.md5Hex(content);
+            assertEquals(17, HBaseFileHelper.rowKey(md5).length);
+            assertEquals(21, HBaseFileHelper.rowKey(DigestUtils.shaHex(content)).length);
+            //not a lower case digest, kept as text
+            assertEquals(32, HBaseFileHelper.rowKey(md5.toUpperCase()).length);
+            assertEquals(md5.toUpperCase(), HBaseFileHelper.identifier(HBaseFileHelper.rowKey(md5.toUpperCase())));
+
+            assertEquals(md5, HBaseFileUtils.upload(new ByteArrayInputStream(content), "binary"));
+            write("binary-text", randomBytes(10));
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile(md5)));
+
+            List<String> identifiers = new ArrayList<String>();
+            HBaseFileResultScanAdapter scanner = HBaseFileSystem.instance().scan();
+            HBaseFile hbFile;
+            while ((hbFile = scanner.nextOne()) != null) {
+                identifiers.add(hbFile.getIdentifier());
+            }
+            assertEquals(Arrays.asList(md5, "binary-text"), identifiers);
+        } finally {
+            HBaseFileHelper.configure(old);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void metaCache() throws IOException {
+        Configuration old = HBaseFileHelper.conf();
+        Configuration conf = new Configuration(old);
+        conf.set(HBaseFileConst.STORE_KEY, HBaseFileConst.STORE_MEMORY);
+        conf.setLong(HBaseFileConst.META_CACHE_BYTES_KEY, MB);
+        try {
+            HBaseFileUtils.configure(conf);
+            byte[] content = randomBytes(MB + 1);
+            write("metaCache", content);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("metaCache");
+            assertTrue(hbFile.integrity());
+            assertEquals(1, HBaseFileHelper.metaCache().size());
+
+            //the cached meta is used without reading the store
+            HBaseFileHelper.store().delete(hbFile);
+            assertTrue(HBaseFile.Factory.buildHBaseFile("metaCache").integrity());
+
+            //our own deletes and writes invalidate it
+            HBaseFile.Factory.buildHBaseFile("metaCache").delete();
+            assertEquals(0, HBaseFileHelper.metaCache().size());
+            assertFalse(HBaseFile.Factory.buildHBaseFile("metaCache").exists());
+            write("metaCache", content);
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile("metaCache")));
+            assertEquals(1, HBaseFileHelper.metaCache().size());
+            //only the INTEGRITY files are cached
+            assertFalse(HBaseFile.Factory.buildHBaseFile("metaCache-missing").exists());
+            assertEquals(1, HBaseFileHelper.metaCache().size());
+
+            //a read going on while the file is deleted does not cache the old meta
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+                @Override
+                public void delete(HBaseFile hbFile) throws IOException {
+                    HBaseFile.Factory.buildHBaseFile(hbFile.getIdentifier());
+                    super.delete(hbFile);
+                    HBaseFile.Factory.buildHBaseFile(hbFile.getIdentifier());
+                }
+            });
+            write("metaCache", content);
+            HBaseFile.Factory.buildHBaseFile("metaCache").delete();
+            assertFalse(HBaseFile.Factory.buildHBaseFile("metaCache").exists());
+            assertEquals(0, HBaseFileHelper.metaCache().size());
+
+            //the inline content counts, 20 files of 60 KB do not fit in 1 MB
+            byte[] inline = randomBytes(60 * 1024);
+            for (int i = 0; i < 20; i++) {
+                write("metaCache-inline-" + i, inline);
+                assertArrayEquals(inline, read(HBaseFile.Factory.buildHBaseFile("metaCache-inline-" + i)));
+            }
+            assertTrue(HBaseFileHelper.metaCache().size() < 17);
+        } finally {
+            HBaseFileHelper.configure(old);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void pooledBuffers() throws IOException {
+        byte[] content = randomBytes(3 * MB + 7);
+        HBaseFileBufferPool.clear();
+        long hits = HBaseFileUtils.bufferPoolMetrics().get("hits");
+        for (int i = 0; i < 3; i++) {
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("pooledBuffers-" + i);
+            try (OutputStream os = new HBaseFileOutputStream(hbFile, true)) {
+                for (int off = 0; off < content.length; off += 1000) {
+                    os.write(content, off, Math.min(1000, content.length - off));
+                }
+            }
+            assertArrayEquals(content, read(HBaseFile.Factory.buildHBaseFile("pooledBuffers-" + i)));
+        }
+        //the second and third streams reuse the buffers of the first one
+        assertTrue(HBaseFileUtils.bufferPoolMetrics().get("hits") >= hits + 2);
+        assertTrue(HBaseFileUtils.bufferPoolMetrics().get("idleBytes") > 0);
+        HBaseFileBufferPool.clear();
+        assertEquals(0L, (long) HBaseFileUtils.bufferPoolMetrics().get("idleBytes"));
+    }
+
+    @Test
+    public void rawShardsNotCopied() throws IOException {
+        final List<Integer> copied = new ArrayList<Integer>();
+        HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+            @Override
+            public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+                //the header is put in the room of the shard buffer
+                if (offset != 0 || bytes.length != HBaseFileBufferPool.SHARD_ROOM + MB) {
+                    copied.add(shard);
+                }
+                super.addShard(hbFile, shard, bytes, offset, length);
+            }
+        });
+        try {
+            byte[] content = randomBytes(3 * MB + 7);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile("rawShardsNotCopied");
+            try (OutputStream os = new HBaseFileOutputStream(hbFile, MB, true)) {
+                for (int off = 0; off < content.length; off += 1000) {
+                    os.write(content, off, Math.min(1000, content.length - off));
+                }
+            }
+            assertTrue(copied.toString(), copied.isEmpty());
+            hbFile = HBaseFile.Factory.buildHBaseFile("rawShardsNotCopied");
+            assertEquals("none", hbFile.getCodec());
+            assertArrayEquals(content, read(hbFile));
+
+            //a raw shard is decoded in place
+            byte[] shard = HBaseFileCodec.encode((byte) 0, content, 0, MB);
+            ByteBuffer decoded = HBaseFileCodec.decode(shard);
+            assertSame(shard, decoded.array());
+            assertEquals(ByteBuffer.wrap(content, 0, MB), decoded);
+        } finally {
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    @Test
+    public void parallelDownload() throws IOException {
+        Configuration conf = HBaseFileHelper.conf();
+        conf.setLong(HBaseFileConst.READ_BATCH_BYTES_KEY, MB);
+        conf.setInt(HBaseFileConst.DOWNLOAD_PARALLEL_KEY, 3);
+        File localFile = File.createTempFile("parallelDownload", ".tmp");
+        try {
+            byte[] content = randomBytes(7 * MB + 3);
+            write("parallelDownload", content);
+            write("parallelDownload-small", randomBytes(100));
+            write("parallelDownload-empty", new byte[0]);
+            for (boolean mmap : new boolean[]{false, true}) {
+                conf.setBoolean(HBaseFileConst.DOWNLOAD_MMAP_KEY, mmap);
+                HBaseFileUtils.download("parallelDownload", localFile);
+                assertArrayEquals(content, FileUtils.readFileToByteArray(localFile));
+                HBaseFileUtils.download("parallelDownload-small", localFile);
+                assertArrayEquals(randomBytes(100), FileUtils.readFileToByteArray(localFile));
+                HBaseFileUtils.download("parallelDownload-empty", localFile);
+                assertEquals(0, localFile.length());
+            }
+            try {
+                HBaseFileUtils.download("parallelDownload-missing", localFile);
+                fail("a missing file can not be downloaded");
+            } catch (IOException ex) {
+                //the local file is not touched
+                assertTrue(localFile.exists());
+            }
+        } finally {
+            conf.setLong(HBaseFileConst.READ_BATCH_BYTES_KEY, HBaseFileConst.DEFAULT_READ_BATCH_BYTES);
+            conf.setInt(HBaseFileConst.DOWNLOAD_PARALLEL_KEY, HBaseFileConst.DEFAULT_DOWNLOAD_PARALLEL);
+            conf.setBoolean(HBaseFileConst.DOWNLOAD_MMAP_KEY, HBaseFileConst.DEFAULT_DOWNLOAD_MMAP);
+            FileUtils.deleteQuietly(localFile);
+        }
+    }
+
+    @Test
+    public void parallelUpload() throws IOException {
+        Configuration conf = HBaseFileHelper.conf();
+        conf.setLong(HBaseFileConst.UPLOAD_PARALLEL_THRESHOLD_KEY, 2 * MB);
+        conf.setLong(HBaseFileConst.WRITE_BUFFER_BYTES_KEY, 3 * MB);
+        File localFile = File.createTempFile("parallelUpload", ".tmp");
+        try {
+            byte[] content = randomBytes(9 * MB + 17);
+            FileUtils.writeByteArrayToFile(localFile, content);
+            assertTrue(HBaseFileUploader.accept(localFile));
+            String identifier = HBaseFileUtils.upload(localFile);
+            assertEquals(DigestUtils.md5Hex(content), identifier);
+            HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile(identifier);
+            assertTrue(hbFile.integrity());
+            assertEquals(10, hbFile.getShards());
+            assertEquals(content.length, hbFile.getSize());
+            assertArrayEquals(content, read(hbFile));
+
+            //exactly full shards
+            content = randomBytes(4 * MB);
+            FileUtils.writeByteArrayToFile(localFile, content);
+            hbFile = HBaseFile.Factory.buildHBaseFile(HBaseFileUtils.upload(localFile));
+            assertEquals(4, hbFile.getShards());
+            assertArrayEquals(content, read(hbFile));
+
+            //the buffers of the failed parts go back to the pool
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore() {
+                @Override
+                public void addShard(HBaseFile hbFile, int shard, byte[] bytes, int offset, int length) throws IOException {
+                    if (shard > 1) {
+                        throw new IOException("addShard " + shard);
+                    }
+                    super.addShard(hbFile, shard, bytes, offset, length);
+                }
+            });
+            HBaseFileBufferPool.clear();
+            Map<String, Long> before = HBaseFileUtils.bufferPoolMetrics();
+            FileUtils.writeByteArrayToFile(localFile, randomBytes(9 * MB));
+            try {
+                HBaseFileUtils.upload(localFile);
+                fail("the shards fail");
+            } catch (IOException expected) {
+            }
+            //every new buffer is idle again, or dropped
+            long size = HBaseFileBufferPool.SHARD_ROOM + MB;
+            long created = 0;
+            long returned = -1;
+            for (int i = 0; i < 100 && returned != created; i++) {
+                Map<String, Long> after = HBaseFileUtils.bufferPoolMetrics();
+                created = after.get("misses") - before.get("misses");
+                returned = after.get("idleBytes") / size + after.get("drops") - before.get("drops");
+                if (returned != created) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            assertTrue(created > 0);
+            assertEquals(created, returned);
+        } finally {
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+            conf.setLong(HBaseFileConst.UPLOAD_PARALLEL_THRESHOLD_KEY,
+                    HBaseFileConst.DEFAULT_UPLOAD_PARALLEL_THRESHOLD);
+            conf.setLong(HBaseFileConst.WRITE_BUFFER_BYTES_KEY, HBaseFileConst.DEFAULT_WRITE_BUFFER_BYTES);
+            FileUtils.deleteQuietly(localFile);
+        }
+    }
+
+    @Test
+    public void batchTransfers() throws Exception {
+        File dir = new File(FileUtils.getTempDirectory(), "batchTransfers-" + System.nanoTime());
+        try {
+            List<File> localFiles = new ArrayList<File>();
+            Map<String, byte[]> contents = new HashMap<String, byte[]>();
+            for (int i = 0; i < 12; i++) {
+                File localFile = new File(dir, "in/" + i);
+                byte[] content = randomBytes(1000 * i + 1);
+                FileUtils.writeByteArrayToFile(localFile, content);
+                localFiles.add(localFile);
+                contents.put(DigestUtils.md5Hex(content), content);
+            }
+            localFiles.add(new File(dir, "in/missing"));
+
+            //the failure is carried by its result
+            List<String> identifiers = new ArrayList<String>();
+            File failed = null;
+            try (HBaseFileBatch<File, String> batch = HBaseFileUtils.uploadAll(localFiles)) {
+                HBaseFileBatch.Result<File, String> result;
+                while ((result = batch.next()) != null) {
+                    if (result.isSuccess()) {
+                        identifiers.add(result.getValue());
+                    } else {
+                        failed = result.getSource();
+                        assertNotNull(result.getError());
+                    }
+                }
+            }
+            assertEquals(new File(dir, "in/missing"), failed);
+            assertEquals(contents.keySet(), new HashSet<String>(identifiers));
+
+            identifiers.add("batchTransfers-missing");
+            int downloaded = 0;
+            try (HBaseFileBatch<String, File> batch = HBaseFileUtils.download(identifiers, new File(dir, "out"))) {
+                HBaseFileBatch.Result<String, File> result;
+                while ((result = batch.next()) != null) {
+                    if (result.isSuccess()) {
+                        assertArrayEquals(contents.get(result.getSource()),
+                                FileUtils.readFileToByteArray(result.getValue()));
+                        downloaded++;
+                    } else {
+                        assertEquals("batchTransfers-missing", result.getSource());
+                    }
+                }
+            }
+            assertEquals(12, downloaded);
+
+            //the futures fail with the upload
+            List<Future<String>> futures = HBaseFileUtils.upload(localFiles);
+            assertEquals(DigestUtils.md5Hex(randomBytes(1)), futures.get(0).get());
+            try {
+                futures.get(12).get();
+                fail("the upload of a missing file should fail");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+
+            //the sources not submitted are dropped by cancel
+            HBaseFileBatch<File, String> batch = HBaseFileUtils.uploadAll(localFiles);
+            batch.cancel();
+            int results = 0;
+            while (batch.next() != null) {
+                results++;
+            }
+            assertTrue(results < localFiles.size());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void cancelBatch() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger transferred = new AtomicInteger();
+        List<Integer> sources = new ArrayList<Integer>();
+        for (int i = 0; i < 20; i++) {
+            sources.add(i);
+        }
+        HBaseFileBatch<Integer, Integer> batch = new HBaseFileBatch<Integer, Integer>(sources,
+                new HBaseFileBatch.Transfer<Integer, Integer>() {
+                    @Override
+                    public Integer transfer(Integer source) throws IOException {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                            throw new InterruptedIOException();
+                        }
+                        transferred.incrementAndGet();
+                        return source;
+                    }
+                }, sources.size());
+        started.await();
+        batch.cancel();
+        release.countDown();
+        //the running transfers are finished and their results kept
+        int results = 0;
+        int succeeded = 0;
+        HBaseFileBatch.Result<Integer, Integer> result;
+        while ((result = batch.next()) != null) {
+            results++;
+            if (result.isSuccess()) {
+                succeeded++;
+            } else {
+                assertTrue(result.getError() instanceof InterruptedIOException);
+            }
+        }
+        assertEquals(sources.size(), results);
+        assertTrue(succeeded > 0 && succeeded < sources.size());
+        assertEquals(transferred.get(), succeeded);
+    }
+
+    @Test
+    public void stats() throws IOException {
+        Configuration old = HBaseFileHelper.conf();
+        Configuration conf = new Configuration(old);
+        conf.set(HBaseFileConst.STORE_KEY, HBaseFileConst.STORE_MEMORY);
+        conf.setInt(HBaseFileConst.SALT_BUCKETS_KEY, 3);
+        conf.setInt(HBaseFileConst.BLOCK_SHARDS_KEY, 1);
+        try {
+            HBaseFileUtils.configure(conf);
+            assertEquals(0, HBaseFileSystem.instance().count());
+            for (int i = 0; i < 10; i++) {
+                write("stats-" + i, randomBytes(100));
+            }
+            write("stats-large", randomBytes(3 * MB));
+            HBaseFileUtils.upload(new ByteArrayInputStream(randomBytes(2 * MB)), "stats");
+            //a broken upload
+            HBaseFile broken = HBaseFile.Factory.buildHBaseFile("stats-broken");
+            new HBaseFileOutputStream(broken).write(randomBytes(MB + 1));
+            //a broken staged upload is counted, the linked one is not
+            HBaseFile staged = HBaseFile.Factory.buildHBaseFile(HBaseFileHelper.stagingIdentifier(), "stats");
+            new HBaseFileOutputStream(staged).write(randomBytes(MB + 1));
+            //a status of a newer version
+            HBaseFile unknown = HBaseFile.Factory.buildHBaseFile("stats-unknown", "stats");
+            unknown.setStatus((byte) 9);
+            HBaseFileHelper.saveOrUpdateMeta(unknown);
+
+            HBaseFileStats stats = HBaseFileSystem.instance().stats();
+            assertEquals(12, stats.getFiles());
+            assertEquals(12, HBaseFileSystem.instance().count());
+            assertEquals(10 * 100 + 5 * MB, stats.getBytes());
+            assertEquals(12L, (long) stats.getStatuses().get("INTEGRITY"));
+            assertEquals(2L, (long) stats.getStatuses().get("TRANSIT"));
+            assertEquals(1L, (long) stats.getStatuses().get("UNKNOWN"));
+            long[] histogram = stats.getHistogram();
+            assertEquals(10, histogram[0]);
+            assertEquals(2, histogram[3]);
+        } finally {
+            HBaseFileHelper.configure(old);
+            HBaseFileHelper.setStore(new HBaseFileMemoryStore());
+        }
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    static void write(String identifier, byte[] content) throws IOException {
+        HBaseFile hbFile = HBaseFile.Factory.buildHBaseFile(identifier, "desc-" + identifier);
+        try (OutputStream os = new HBaseFileOutputStream(hbFile)) {
+            for (byte b : content) {
+                os.write(b);
+            }
+        }
+    }
+
+    static byte[] read(HBaseFile hbFile) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (InputStream is = new HBaseFileInputStream(hbFile)) {
+            IOUtils.copy(is, bos);
+        }
+        return bos.toByteArray();
+    }
+
+}